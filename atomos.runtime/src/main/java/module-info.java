@@ -24,6 +24,7 @@ open module org.apache.felix.atomos.runtime
     requires transitive atomos.osgi.framework;
     requires static osgi.annotation;
     requires static jdk.unsupported;
+    requires static jdk.jfr;
     requires static org.apache.felix.gogo.runtime;
 
     uses ConnectFrameworkFactory;
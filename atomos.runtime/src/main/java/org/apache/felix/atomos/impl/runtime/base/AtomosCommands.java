@@ -35,7 +35,8 @@ import org.osgi.framework.ServiceRegistration;
 public class AtomosCommands
 {
 
-    public static String[] functions = new String[] { "list", "install", "uninstall" };
+    public static String[] functions = new String[] { "list", "install", "uninstall",
+            "timeline", "debug" };
     private final AtomosRuntimeBase runtime;
 
     public AtomosCommands(AtomosRuntimeBase runtime)
@@ -170,4 +171,33 @@ public class AtomosCommands
             }
         }
     }
+
+    @Descriptor("Show the timeline of the Atomos startup phases")
+    public void timeline()
+    {
+        AtomosTimeline timeline = runtime.getTimeline();
+        for (AtomosTimeline.Event event : timeline.getEvents())
+        {
+            System.out.println(event);
+        }
+        int dropped = timeline.getDropped();
+        if (dropped > 0)
+        {
+            System.out.println("Dropped " + dropped + " events");
+        }
+        System.out.println("Elapsed " + timeline.getElapsed() + " ms");
+    }
+
+    @Descriptor("Show if Atomos debug messages are enabled")
+    public void debug()
+    {
+        System.out.println("Atomos debug is " + (runtime.isDebug() ? "on" : "off"));
+    }
+
+    @Descriptor("Enable or disable Atomos debug messages")
+    public void debug(@Descriptor("true to enable debug messages") boolean enable)
+    {
+        runtime.setDebug(enable);
+        debug();
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Version;
+
+/**
+ * Persists the metadata of discovered Atomos contents between launches.
+ * Each entry is keyed by the class path or substrate entry it was discovered
+ * from and records the size and last modified time of that entry.  An entry
+ * is only used if the size and last modified time still match, otherwise
+ * the entry is discovered again.
+ */
+public class AtomosDiscoveryCache
+{
+    private final static int VERSION = 2;
+    static final String ATOMOS_DISCOVERY_CACHE = "atomosDiscovery.data";
+    // decides the location of an exploded directory so it is part of its fingerprint
+    private static final String FRAMEWORK_FACTORY = "services/"
+        + "org.osgi.framework.launch.FrameworkFactory";
+    // a key, a size, a last modified time and a kind
+    private static final int ENTRY_MIN_SIZE = 2 + 8 + 8 + 2;
+
+    /**
+     * The kind of content discovered for an entry.
+     */
+    public enum ContentKind
+    {
+        /**
+         * The entry is not a bundle.
+         */
+        NONE,
+        /**
+         * The entry is an exploded bundle directory.
+         */
+        DIRECTORY,
+        /**
+         * The entry is a bundle JAR.
+         */
+        JAR
+    }
+
+    /**
+     * The metadata of a discovered entry.
+     */
+    public static final class DiscoveredContent
+    {
+        final long size;
+        final long lastModified;
+        private final ContentKind kind;
+        private final String symbolicName;
+        private final Version version;
+        private final String location;
+
+        DiscoveredContent(long size, long lastModified, ContentKind kind, String symbolicName, Version version, String location)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.kind = kind;
+            this.symbolicName = symbolicName;
+            this.version = version;
+            this.location = location;
+        }
+
+        public ContentKind getKind()
+        {
+            return kind;
+        }
+
+        public String getSymbolicName()
+        {
+            return symbolicName;
+        }
+
+        public Version getVersion()
+        {
+            return version;
+        }
+
+        public String getLocation()
+        {
+            return location;
+        }
+    }
+
+    private final AtomosRuntimeBase atomosRuntime;
+    // the directory the cache is read from and saved to; null if not configured
+    private final File root;
+    // entries read from the previous launch
+    private final Map<String, DiscoveredContent> loaded;
+    // entries looked up or discovered during this launch; only these are saved
+    private final Map<String, DiscoveredContent> current = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    AtomosDiscoveryCache(AtomosRuntimeBase atomosRuntime, File root)
+    {
+        this.atomosRuntime = atomosRuntime;
+        this.root = root;
+        this.loaded = root == null ? Collections.emptyMap() : load(root);
+    }
+
+    private Map<String, DiscoveredContent> load(File root)
+    {
+        try
+        {
+            byte[] bytes = Files.readAllBytes(
+                new File(root, ATOMOS_DISCOVERY_CACHE).toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int persistentVersion = in.readInt();
+            if (persistentVersion != VERSION)
+            {
+                atomosRuntime.debug("Ignoring %s with version %s in %s",
+                    ATOMOS_DISCOVERY_CACHE, persistentVersion, root);
+                return Collections.emptyMap();
+            }
+            int numEntries = in.readInt();
+            // a damaged count must not allocate more than the file can hold
+            if (numEntries < 0 || (long) numEntries * ENTRY_MIN_SIZE > in.available())
+            {
+                throw new IOException("Invalid entry count: " + numEntries);
+            }
+            Map<String, DiscoveredContent> result = new HashMap<>(numEntries * 2);
+            for (int i = 0; i < numEntries; i++)
+            {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                ContentKind kind = ContentKind.valueOf(in.readUTF());
+                String symbolicName = null;
+                Version version = null;
+                String location = null;
+                if (kind != ContentKind.NONE)
+                {
+                    symbolicName = in.readUTF();
+                    version = Version.parseVersion(in.readUTF());
+                    location = in.readUTF();
+                }
+                result.put(key, new DiscoveredContent(size, lastModified, kind,
+                    symbolicName, version, location));
+            }
+            atomosRuntime.debug("Found %s with %s entries in %s",
+                ATOMOS_DISCOVERY_CACHE, numEntries, root);
+            return result;
+        }
+        catch (NoSuchFileException e)
+        {
+            // ignore no file
+            atomosRuntime.debug("No %s found in %s", ATOMOS_DISCOVERY_CACHE, root);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            // a damaged cache only means everything gets discovered again
+            atomosRuntime.debug("Ignoring damaged %s in %s: %s", ATOMOS_DISCOVERY_CACHE,
+                root, e);
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Returns the cached content for the specified key if the fingerprint
+     * of the specified file has not changed since it was cached.
+     * @param key the key of the entry
+     * @param file the file to fingerprint, may be {@code null}
+     * @return the cached content or {@code null} if the entry must be discovered
+     */
+    public DiscoveredContent get(String key, File file)
+    {
+        DiscoveredContent cached = loaded.get(key);
+        if (cached != null && file != null && cached.size == length(file)
+            && cached.lastModified == lastModified(file))
+        {
+            current.put(key, cached);
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Records the discovered content for the specified key.
+     * @param key the key of the entry
+     * @param file the file to fingerprint, if {@code null} nothing is recorded
+     * @param kind the kind of content
+     * @param symbolicName the symbolic name, or {@code null} if the kind is {@link ContentKind#NONE}
+     * @param version the version, or {@code null} if the kind is {@link ContentKind#NONE}
+     * @param location the Atomos location, or {@code null} if the kind is {@link ContentKind#NONE}
+     */
+    public void put(String key, File file, ContentKind kind, String symbolicName,
+        Version version, String location)
+    {
+        if (file == null || !file.exists())
+        {
+            return;
+        }
+        current.put(key, new DiscoveredContent(length(file), lastModified(file), kind,
+            symbolicName, version, location));
+    }
+
+    /**
+     * Returns the framework factory service file of an exploded directory
+     * if the specified file is the manifest of the directory.
+     */
+    private static File getFrameworkFactory(File file)
+    {
+        File metaInf = file.getParentFile();
+        if (metaInf == null || !"MANIFEST.MF".equals(file.getName())
+            || !"META-INF".equals(metaInf.getName()))
+        {
+            return null;
+        }
+        return new File(metaInf, FRAMEWORK_FACTORY);
+    }
+
+    private static long length(File file)
+    {
+        long result = file.length();
+        File factory = getFrameworkFactory(file);
+        if (factory != null && factory.isFile())
+        {
+            // adding one changes the length even for an empty service file
+            result += factory.length() + 1;
+        }
+        return result;
+    }
+
+    private static long lastModified(File file)
+    {
+        long result = file.lastModified();
+        File factory = getFrameworkFactory(file);
+        if (factory != null)
+        {
+            // zero if the service file does not exist
+            result = Math.max(result, factory.lastModified());
+        }
+        return result;
+    }
+
+    /**
+     * Saves the cache to the configured directory.  Nothing is saved if
+     * no directory is configured.
+     */
+    void save() throws IOException
+    {
+        if (root == null)
+        {
+            return;
+        }
+        atomosRuntime.debug("Saving %s with %s entries (%s hits, %s misses)",
+            ATOMOS_DISCOVERY_CACHE, current.size(), hits.get(), misses.get());
+        // write a temporary file first so a failed write never leaves a partial cache
+        File tmp = new File(root, ATOMOS_DISCOVERY_CACHE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(VERSION);
+            Map<String, DiscoveredContent> entries = new HashMap<>(current);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, DiscoveredContent> entry : entries.entrySet())
+            {
+                DiscoveredContent content = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(content.size);
+                out.writeLong(content.lastModified);
+                out.writeUTF(content.kind.toString());
+                if (content.kind != ContentKind.NONE)
+                {
+                    out.writeUTF(content.symbolicName);
+                    out.writeUTF(content.version.toString());
+                    out.writeUTF(content.location);
+                }
+            }
+        }
+        AtomosStorage.replace(tmp.toPath(),
+            new File(root, ATOMOS_DISCOVERY_CACHE).toPath());
+    }
+
+    /**
+     * Returns the file on disk that backs the specified manifest URL.  For a
+     * JAR manifest this is the outermost JAR file, for an exploded directory
+     * this is the manifest file itself.
+     * @param manifest the manifest URL
+     * @return the file or {@code null} if it cannot be determined
+     */
+    static File getFile(URL manifest)
+    {
+        try
+        {
+            String spec = manifest.toString();
+            if (AtomosRuntimeBase.JAR_PROTOCOL.equals(manifest.getProtocol()))
+            {
+                int separator = spec.indexOf("!/");
+                if (separator == -1)
+                {
+                    return null;
+                }
+                URL jarURL = new URL(spec.substring(
+                    AtomosRuntimeBase.JAR_PROTOCOL.length() + 1, separator));
+                if (!AtomosRuntimeBase.FILE_PROTOCOL.equals(jarURL.getProtocol()))
+                {
+                    return null;
+                }
+                return new File(jarURL.toURI());
+            }
+            if (AtomosRuntimeBase.FILE_PROTOCOL.equals(manifest.getProtocol()))
+            {
+                return new File(manifest.toURI());
+            }
+        }
+        catch (IOException | URISyntaxException | IllegalArgumentException e)
+        {
+            // fall through and do not cache
+        }
+        return null;
+    }
+}
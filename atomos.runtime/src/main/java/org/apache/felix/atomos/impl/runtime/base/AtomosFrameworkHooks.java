@@ -16,6 +16,7 @@ package org.apache.felix.atomos.impl.runtime.base;
 import java.util.Collection;
 import java.util.Iterator;
 
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
 import org.apache.felix.atomos.runtime.AtomosContent;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.hooks.bundle.CollisionHook;
@@ -31,6 +32,14 @@ public class AtomosFrameworkHooks implements ResolverHookFactory, CollisionHook
 {
     public class AtomosResolverHook implements ResolverHook
     {
+        private final VisibilityCache visibility = new VisibilityCache();
+        private final Span resolve;
+
+        AtomosResolverHook(Collection<BundleRevision> triggers)
+        {
+            resolve = atomosRuntime.getTimeline().begin("resolve",
+                "resolver hook " + triggers.size() + " triggers");
+        }
 
         @Override
         public void filterResolvable(Collection<BundleRevision> candidates)
@@ -44,7 +53,8 @@ public class AtomosFrameworkHooks implements ResolverHookFactory, CollisionHook
         {
             AtomosContent atomosBundle = atomosRuntime.getByConnectLocation(
                 singleton.getRevision().getBundle().getLocation(), true);
-            atomosRuntime.filterNotVisible(atomosBundle, collisionCandidates);
+            atomosRuntime.filterNotVisible(atomosBundle, collisionCandidates,
+                visibility);
         }
 
         @Override
@@ -57,10 +67,11 @@ public class AtomosFrameworkHooks implements ResolverHookFactory, CollisionHook
             {
                 case PackageNamespace.PACKAGE_NAMESPACE:
                 case BundleNamespace.BUNDLE_NAMESPACE:
-                    atomosRuntime.filterBasedOnReadEdges(atomosBundle, candidates);
+                    atomosRuntime.filterBasedOnReadEdges(atomosBundle, candidates,
+                        visibility);
                     return;
                 default:
-                    atomosRuntime.filterNotVisible(atomosBundle, candidates);
+                    atomosRuntime.filterNotVisible(atomosBundle, candidates, visibility);
                     return;
             }
 
@@ -69,7 +80,10 @@ public class AtomosFrameworkHooks implements ResolverHookFactory, CollisionHook
         @Override
         public void end()
         {
-            // do nothing
+            // shown by the timeline command
+            resolve.setDetail(String.format("visibility cache %s hits %s misses",
+                visibility.getHits(), visibility.getMisses()));
+            resolve.close();
         }
 
     }
@@ -84,7 +98,7 @@ public class AtomosFrameworkHooks implements ResolverHookFactory, CollisionHook
     @Override
     public ResolverHook begin(Collection<BundleRevision> triggers)
     {
-        return new AtomosResolverHook();
+        return new AtomosResolverHook(triggers);
     }
 
     @Override
@@ -14,33 +14,58 @@
 
 package org.apache.felix.atomos.impl.runtime.base;
 
+import java.util.Arrays;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.connect.FrameworkUtilHelper;
 
 public class AtomosFrameworkUtilHelper implements FrameworkUtilHelper
 {
-    static private final Set<FrameworkUtilHelper> helpers = new CopyOnWriteArraySet<>();
+    // copy on write array so a lookup iterates without allocating
+    static private volatile FrameworkUtilHelper[] helpers = new FrameworkUtilHelper[0];
 
-    static void addHelper(FrameworkUtilHelper helper)
+    static synchronized void addHelper(FrameworkUtilHelper helper)
     {
-        helpers.add(helper);
+        for (FrameworkUtilHelper h : helpers)
+        {
+            if (h.equals(helper))
+            {
+                return;
+            }
+        }
+        FrameworkUtilHelper[] result = Arrays.copyOf(helpers, helpers.length + 1);
+        result[helpers.length] = helper;
+        helpers = result;
     }
 
-    static void removeHelper(FrameworkUtilHelper helper)
+    static synchronized void removeHelper(FrameworkUtilHelper helper)
     {
-        helpers.remove(helper);
+        FrameworkUtilHelper[] current = helpers;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i].equals(helper))
+            {
+                FrameworkUtilHelper[] result = new FrameworkUtilHelper[current.length - 1];
+                System.arraycopy(current, 0, result, 0, i);
+                System.arraycopy(current, i + 1, result, i, result.length - i);
+                helpers = result;
+                return;
+            }
+        }
     }
 
     @Override
     public Optional<Bundle> getBundle(Class<?> classFromBundle)
     {
-        return helpers.stream().map(h -> h.getBundle(classFromBundle)) //
-            .filter(Optional::isPresent) //
-            .map(Optional::get) //
-            .findFirst();
+        for (FrameworkUtilHelper helper : helpers)
+        {
+            Optional<Bundle> result = helper.getBundle(classFromBundle);
+            if (result.isPresent())
+            {
+                return result;
+            }
+        }
+        return Optional.empty();
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase.AtomosContentBase;
+import org.apache.felix.atomos.runtime.AtomosContent;
+
+/**
+ * The location, content and layer indexes of an Atomos runtime. Readers look up
+ * the concurrent maps without any locking. Writers hold the runtime write lock,
+ * so a change that touches several indexes is not interleaved with another
+ * change, and update the maps in place. Keys are never null; callers check a key
+ * that may be null before a lookup.
+ */
+final class AtomosIndexes
+{
+    // A map of Atomos contents that have a connect location; the key is the connect location
+    final Map<String, AtomosContentBase> connectLocationToAtomosContent = new ConcurrentHashMap<>();
+    // A map of all Atomos contents discovered (may not be installed as OSGi bundles); the key is the Atomos location
+    final Map<String, AtomosContentBase> atomosLocationToAtomosContent = new ConcurrentHashMap<>();
+    // A map of connect locations for Atomos contents; key is the AtomosContentBase.getKey()
+    // Used to lookup an OSGi bundle location for a Class<?> in getBundleLocation(Class<?>)
+    final Map<Object, String> atomosKeyToConnectLocation = new ConcurrentHashMap<>();
+    // A map of Layers keyed by layer ID
+    final Map<Long, AtomosLayerBase> idToLayer = new ConcurrentHashMap<>();
+    // A map of connect locations for Atomos contents; key is Atomos content
+    final Map<AtomosContent, String> atomosContentToConnectLocation = new ConcurrentHashMap<>();
+    // A set of connect locations that the framework has connected using the AtomosModuleConnector
+    final Map<String, AtomosContentBase> connectedLocations = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,448 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase.AtomosContentBase;
+import org.apache.felix.atomos.runtime.AtomosLayer;
+import org.apache.felix.atomos.runtime.AtomosRuntime.LoaderType;
+
+/**
+ * An append-only journal of the changes made to the Atomos layers and connected
+ * contents since {@code atomosStore.data} was last written.  Each change is
+ * appended as it happens; shutdown only has to force the journal to disk.  The
+ * journal is replayed on top of the store when the runtime is initialized.
+ * A new store is then written and the journal starts empty, so the layers
+ * added before the runtime was initialized are persisted too.  Once the
+ * journal holds enough records it is compacted in the background by writing
+ * a new store and replacing the journal with the records appended since.
+ * <p>
+ * Each record is an int length followed by a type byte and the record data.
+ * A partial record at the end of the journal is discarded on replay.
+ */
+class AtomosJournal
+{
+    private final static int VERSION = 1;
+    static final String ATOMOS_JOURNAL = "atomosStore.journal";
+    private final static int HEADER_SIZE = 4;
+    private final static int COMPACT_THRESHOLD = 1024;
+    private final static long COMPACT_TIMEOUT_SECONDS = 60;
+
+    private final static byte CONNECT = 1;
+    private final static byte DISCONNECT = 2;
+    private final static byte ADD_LAYER = 3;
+    private final static byte REMOVE_LAYER = 4;
+
+    private interface RecordWriter
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final AtomosRuntimeBase atomosRuntime;
+    private final AtomosStorage storage;
+    private final File root;
+    private final Path journalPath;
+    private FileChannel channel;
+    private int numRecords = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+    private boolean compacting = false;
+    // a single daemon thread that is started by a compaction and ends when idle
+    final ThreadPoolExecutor compactor = new ThreadPoolExecutor(1, 1, 10,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+            Thread thread = new Thread(r, "Atomos Journal Compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /**
+     * Opens the journal in the specified root and replays its records.  Must
+     * be called while holding the runtime write lock after the store is loaded.
+     */
+    AtomosJournal(AtomosRuntimeBase atomosRuntime, AtomosStorage storage, File root)
+        throws IOException
+    {
+        this.atomosRuntime = atomosRuntime;
+        this.storage = storage;
+        this.root = root;
+        this.journalPath = new File(root, ATOMOS_JOURNAL).toPath();
+        compactor.allowCoreThreadTimeOut(true);
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+        // persist the replayed state and anything added before initialization
+        atomosRuntime.debug("Writing the store after replaying %s records",
+            numRecords);
+        storage.saveLayers(root, null);
+        channel.truncate(0);
+        writeHeader();
+        channel.force(false);
+        numRecords = 0;
+    }
+
+    private void replay() throws IOException
+    {
+        long size = channel.size();
+        if (size < HEADER_SIZE)
+        {
+            return;
+        }
+        ByteBuffer journal = ByteBuffer.allocate((int) size);
+        while (journal.hasRemaining() && channel.read(journal, journal.position()) > 0)
+        {
+            // keep reading
+        }
+        journal.flip();
+        int persistentVersion = journal.getInt();
+        if (persistentVersion != VERSION)
+        {
+            throw new IOException("Unsupported Atomos journal version: "
+                + persistentVersion);
+        }
+        atomosRuntime.debug("Replaying %s in %s", ATOMOS_JOURNAL, root);
+        while (journal.remaining() >= 4)
+        {
+            int length = journal.getInt(journal.position());
+            if (length <= 0 || length > journal.remaining() - 4)
+            {
+                atomosRuntime.debug("Discarding partial journal record at %s",
+                    journal.position());
+                break;
+            }
+            byte[] record = new byte[length];
+            journal.position(journal.position() + 4);
+            journal.get(record);
+            replayRecord(new DataInputStream(new ByteArrayInputStream(record)));
+            numRecords++;
+        }
+        atomosRuntime.debug("Replayed %s journal records", numRecords);
+    }
+
+    private void replayRecord(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        try
+        {
+            switch (type)
+            {
+                case CONNECT :
+                    storage.connectContent(in.readUTF(), in.readUTF());
+                    break;
+                case DISCONNECT :
+                    AtomosContentBase content = atomosRuntime.getByAtomosLocation(
+                        in.readUTF());
+                    if (content != null)
+                    {
+                        atomosRuntime.disconnectAtomosContent(content);
+                    }
+                    break;
+                case ADD_LAYER :
+                    replayAddLayer(in);
+                    break;
+                case REMOVE_LAYER :
+                    AtomosLayerBase layer = atomosRuntime.getById(in.readLong());
+                    if (layer != null)
+                    {
+                        layer.removeLayerFromRuntime();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown Atomos journal record type: " + type);
+            }
+        }
+        catch (IllegalStateException | IllegalArgumentException e)
+        {
+            // the store may already contain the change if a compaction was interrupted
+            atomosRuntime.debug("Skipping journal record %s: %s", type, e.getMessage());
+        }
+    }
+
+    private void replayAddLayer(DataInputStream in) throws IOException
+    {
+        long id = in.readLong();
+        String name = in.readUTF();
+        LoaderType loaderType = LoaderType.valueOf(in.readUTF());
+        Path[] paths = new Path[in.readInt()];
+        for (int i = 0; i < paths.length; i++)
+        {
+            paths[i] = storage.toPath(in.readUTF());
+        }
+        int numParents = in.readInt();
+        List<AtomosLayer> parents = new ArrayList<>(numParents);
+        for (int i = 0; i < numParents; i++)
+        {
+            parents.add(storage.getParent(in.readLong()));
+        }
+        storage.addLayer(name, id, loaderType, paths, parents);
+        atomosRuntime.nextLayerId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    synchronized void connect(String atomosLocation, String connectLocation)
+    {
+        append(CONNECT, (out) -> {
+            out.writeUTF(atomosLocation);
+            out.writeUTF(connectLocation);
+        });
+    }
+
+    synchronized void disconnect(String atomosLocation)
+    {
+        append(DISCONNECT, (out) -> out.writeUTF(atomosLocation));
+    }
+
+    synchronized void addLayer(AtomosLayerBase layer)
+    {
+        append(ADD_LAYER, (out) -> {
+            out.writeLong(layer.getId());
+            out.writeUTF(layer.getName());
+            out.writeUTF(layer.getLoaderType().toString());
+            List<Path> paths = layer.getPaths();
+            out.writeInt(paths.size());
+            for (Path path : paths)
+            {
+                out.writeUTF(path.toUri().toString());
+            }
+            List<AtomosLayer> parents = layer.getParents();
+            out.writeInt(parents.size());
+            for (AtomosLayer parent : parents)
+            {
+                out.writeLong(parent.getId());
+            }
+        });
+    }
+
+    synchronized void removeLayer(AtomosLayerBase layer)
+    {
+        append(REMOVE_LAYER, (out) -> out.writeLong(layer.getId()));
+    }
+
+    private void append(byte type, RecordWriter writer)
+    {
+        if (failed)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            // the length is filled in once the record is written
+            out.writeInt(0);
+            out.writeByte(type);
+            writer.write(out);
+            out.flush();
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(0, record.limit() - 4);
+            while (record.hasRemaining())
+            {
+                channel.write(record);
+            }
+            if (++numRecords >= COMPACT_THRESHOLD && !compacting)
+            {
+                // the caller holds the runtime write lock; compact on another thread
+                compacting = true;
+                compactor.execute(this::compact);
+            }
+        }
+        catch (IOException e)
+        {
+            // fall back to saving the full store on shutdown
+            failed = true;
+            atomosRuntime.debug("Failed to write %s: %s", ATOMOS_JOURNAL, e);
+        }
+    }
+
+    /**
+     * Writes a new store with the current state and replaces the journal with
+     * the records appended after the state was taken.  If this is interrupted
+     * the old journal is replayed on top of the new store, which already
+     * contains its changes.
+     */
+    private void compact()
+    {
+        try
+        {
+            byte[] snapshot;
+            long position;
+            int snapshotRecords;
+            // records are only appended while holding the write lock, so the
+            // journal position matches the state under the read lock
+            atomosRuntime.lockRead();
+            try
+            {
+                snapshot = storage.snapshotLayers();
+                synchronized (this)
+                {
+                    if (closed || failed)
+                    {
+                        return;
+                    }
+                    position = channel.position();
+                    snapshotRecords = numRecords;
+                }
+            }
+            finally
+            {
+                atomosRuntime.unlockRead();
+            }
+            atomosRuntime.debug("Compacting %s with %s records", ATOMOS_JOURNAL,
+                snapshotRecords);
+            storage.writeStore(root, snapshot);
+            synchronized (this)
+            {
+                if (!closed && !failed)
+                {
+                    replaceJournal(position);
+                    numRecords -= snapshotRecords;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                // fall back to saving the full store on shutdown
+                failed = true;
+            }
+            atomosRuntime.debug("Failed to compact %s: %s", ATOMOS_JOURNAL, e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                compacting = false;
+            }
+        }
+    }
+
+    private void replaceJournal(long position) throws IOException
+    {
+        ByteBuffer tail = ByteBuffer.allocate((int) (channel.size() - position));
+        while (tail.hasRemaining() && channel.read(tail, position + tail.position()) > 0)
+        {
+            // keep reading
+        }
+        tail.flip();
+        Path tmpJournal = new File(root, ATOMOS_JOURNAL + ".tmp").toPath();
+        try (FileChannel tmp = FileChannel.open(tmpJournal, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(VERSION);
+            header.flip();
+            while (header.hasRemaining())
+            {
+                tmp.write(header);
+            }
+            while (tail.hasRemaining())
+            {
+                tmp.write(tail);
+            }
+            tmp.force(false);
+        }
+        // the journal must be closed before it can be replaced on some platforms
+        channel.close();
+        AtomosStorage.replace(tmpJournal, journalPath);
+        channel = FileChannel.open(journalPath, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    private void writeHeader() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(VERSION);
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining())
+        {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Forces the journal to disk.
+     * @return false if the journal failed and the full store must be saved
+     */
+    synchronized boolean sync()
+    {
+        if (failed)
+        {
+            return false;
+        }
+        try
+        {
+            channel.force(false);
+            return true;
+        }
+        catch (IOException e)
+        {
+            failed = true;
+            atomosRuntime.debug("Failed to sync %s: %s", ATOMOS_JOURNAL, e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the journal after waiting for a running compaction to finish.
+     * Must not be called while holding the runtime lock.
+     */
+    void close()
+    {
+        synchronized (this)
+        {
+            closed = true;
+        }
+        // a compaction started before the journal closed still writes the store
+        compactor.shutdown();
+        try
+        {
+            if (!compactor.awaitTermination(COMPACT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                atomosRuntime.debug("Timed out compacting %s", ATOMOS_JOURNAL);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                atomosRuntime.debug("Failed to close %s: %s", ATOMOS_JOURNAL, e);
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@ package org.apache.felix.atomos.impl.runtime.base;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.net.JarURLConnection;
 import java.net.URISyntaxException;
@@ -24,6 +25,7 @@ import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
@@ -36,6 +38,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -43,7 +50,10 @@ import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.ContentKind;
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.DiscoveredContent;
 import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase.AtomosContentBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
 import org.apache.felix.atomos.impl.runtime.substrate.AtomosRuntimeSubstrate;
 import org.apache.felix.atomos.runtime.AtomosContent;
 import org.apache.felix.atomos.runtime.AtomosLayer;
@@ -70,6 +80,8 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
     static final String JAR_PROTOCOL = "jar";
     static final String FILE_PROTOCOL = "file";
     public static final String ATOMOS_DEBUG_PROP = "atomos.enable.debug";
+    public static final String ATOMOS_DISCOVERY_THREADS_PROP = "atomos.discovery.threads";
+    public static final String ATOMOS_DISCOVERY_CACHE_PROP = "atomos.discovery.cache";
     public static final String ATOMOS_BUNDLES = "/atomos/";
     public static final String ATOMOS_BUNDLES_INDEX = ATOMOS_BUNDLES + "bundles.index";
     public static final String ATOMOS_SUBSTRATE = "atomos.substrate";
@@ -78,37 +90,62 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
     public static final String SUBSTRATE_LIB_DIR = "substrate_lib";
     public static final String GRAAL_NATIVE_IMAGE_KIND = "org.graalvm.nativeimage.kind";
 
-    private final boolean DEBUG;
+    // checked before any message is built so disabled debug calls allocate nothing
+    private volatile boolean debug;
+    private final AtomosDiscoveryCache discoveryCache;
 
     private final AtomicReference<BundleContext> context = new AtomicReference<>();
     private final AtomicReference<File> storeRoot = new AtomicReference<>();
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-    // The following area all protected by the read/write lock
-
-    // A map of Atomos contents that have a connect location; the key is the connect location
-    private final Map<String, AtomosContentBase> connectLocationToAtomosContent = new HashMap<>();
-    // A map of all Atomos contents discovered (may not be installed as OSGi bundles); the key is the Atomos location
-    private final Map<String, AtomosContentBase> atomosLocationToAtomosContent = new HashMap<>();
-    // A map of connect locations for Atomos contents; key is the AtomosContentBase.getKey()
-    // Used to lookup an OSGi bundle location for a Class<?> in getBundleLocation(Class<?>)
-    protected final Map<Object, String> atomosKeyToConnectLocation = new HashMap<>();
-    // A map of Layers keyed by layer ID
-    final Map<Long, AtomosLayerBase> idToLayer = new HashMap<>();
-    // A map of connect locations for Atomos contents; key is Atomos content
-    private final Map<AtomosContent, String> atomosContentToConnectLocation = new HashMap<>();
-    // A set of connect locations that the framework has connected using the AtomosModuleConnector
-    private final Map<String, AtomosContentBase> connectedLocations = new HashMap<>();
+    // The location, content and layer indexes.
+    // Reads use the concurrent maps without locking; updates are made while holding the write lock
+    private final AtomosIndexes indexes = new AtomosIndexes();
+
+    // The journal of changes since the store was last written; null until initialized
+    private volatile AtomosJournal journal;
 
     protected final AtomicLong nextLayerId = new AtomicLong(0);
 
+    private volatile boolean lazyActivation = false;
+
+    private final AtomosTimeline timeline = new AtomosTimeline();
+
+    // caches the Atomos key of classes; the key of a class computed before the
+    // generation last changed is computed again
+    private final ClassValue<AtomosKey> atomosKeys = new ClassValue<AtomosKey>()
+    {
+        @Override
+        protected AtomosKey computeValue(Class<?> type)
+        {
+            // read the generation first so a concurrent invalidation is not lost
+            long generation = keyGeneration.get();
+            return new AtomosKey(getAtomosKey(type), generation);
+        }
+    };
+    private final AtomicLong keyGeneration = new AtomicLong();
+
     public static AtomosRuntime newAtomosRuntime()
+    {
+        return newAtomosRuntime(null);
+    }
+
+    public static AtomosRuntime newAtomosRuntime(Map<String, String> configuration)
+    {
+        Span select = AtomosTimeline.start("runtime", "newAtomosRuntime");
+        AtomosRuntimeBase result = (AtomosRuntimeBase) selectAtomosRuntime(
+            configuration);
+        select.end(result.getTimeline());
+        return result;
+    }
+
+    private static AtomosRuntime selectAtomosRuntime(Map<String, String> configuration)
     {
         String runtimeClass = System.getProperty(ATOMOS_RUNTIME_CLASS);
         if (runtimeClass != null)
         {
-            return loadRuntime(runtimeClass);
+            return loadRuntime(runtimeClass, configuration);
         }
         if (System.getProperty(ATOMOS_SUBSTRATE) != null
             || System.getProperty(GRAAL_NATIVE_IMAGE_KIND) != null)
@@ -116,12 +153,12 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             URL index = AtomosRuntimeBase.class.getResource(ATOMOS_BUNDLES_INDEX);
             if (index != null)
             {
-                return new AtomosRuntimeSubstrate(null);
+                return new AtomosRuntimeSubstrate(null, configuration);
             }
             File substrateLibDir = findSubstrateLibDir();
             if (substrateLibDir.isDirectory())
             {
-                return new AtomosRuntimeSubstrate(substrateLibDir);
+                return new AtomosRuntimeSubstrate(substrateLibDir, configuration);
             }
             else
             {
@@ -131,22 +168,32 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         try
         {
             Class.forName("java.lang.Module");
-            return loadRuntime(ATOMOS_RUNTIME_MODULES_CLASS);
+            return loadRuntime(ATOMOS_RUNTIME_MODULES_CLASS, configuration);
         }
         catch (ClassNotFoundException e)
         {
             // ignore
         }
         // default to classpath
-        return new AtomosRuntimeClassPath();
+        return new AtomosRuntimeClassPath(configuration);
     }
 
-    private static AtomosRuntime loadRuntime(String runtimeClass)
+    private static AtomosRuntime loadRuntime(String runtimeClass,
+        Map<String, String> configuration)
     {
         try
         {
-            return (AtomosRuntimeBase) Class.forName(
-                runtimeClass).getConstructor().newInstance();
+            Class<?> clazz = Class.forName(runtimeClass);
+            try
+            {
+                return (AtomosRuntimeBase) clazz.getConstructor(Map.class).newInstance(
+                    configuration);
+            }
+            catch (NoSuchMethodException e)
+            {
+                // a runtime that does not take the configuration
+                return (AtomosRuntimeBase) clazz.getConstructor().newInstance();
+            }
         }
         catch (Exception e)
         {
@@ -164,7 +211,74 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected AtomosRuntimeBase()
     {
-        DEBUG = Boolean.getBoolean(ATOMOS_DEBUG_PROP);
+        this(null);
+    }
+
+    /**
+     * Creates a runtime for a framework with the specified configuration.
+     * @param configuration the framework configuration, may be {@code null}
+     */
+    protected AtomosRuntimeBase(Map<String, String> configuration)
+    {
+        debug = Boolean.getBoolean(ATOMOS_DEBUG_PROP);
+        // discovery happens before the framework is initialized so the cache
+        // directory comes from the configuration the runtime is created with
+        String cacheDir = getCacheProperty(configuration, ATOMOS_DISCOVERY_CACHE_PROP);
+        if (cacheDir == null)
+        {
+            cacheDir = getCacheProperty(configuration, Constants.FRAMEWORK_STORAGE);
+        }
+        discoveryCache = new AtomosDiscoveryCache(this,
+            cacheDir == null ? null : new File(cacheDir));
+    }
+
+    private static String getCacheProperty(Map<String, String> configuration,
+        String key)
+    {
+        String value = configuration == null ? null : configuration.get(key);
+        return value == null ? System.getProperty(key) : value;
+    }
+
+    protected final AtomosDiscoveryCache getDiscoveryCache()
+    {
+        return discoveryCache;
+    }
+
+    protected final AtomosTimeline getTimeline()
+    {
+        return timeline;
+    }
+
+    /**
+     * Returns true if the Atomos contents are started lazily.
+     * @return true if lazy activation is enabled
+     * @see AtomosRuntime#ATOMOS_CONTENT_LAZY
+     */
+    public final boolean isLazyActivation()
+    {
+        return lazyActivation;
+    }
+
+    /**
+     * Returns true if loading a class from the specified content can trigger the
+     * lazy activation of its bundle.  Contents that cannot trigger it are started
+     * eagerly even when lazy activation is enabled.
+     * @param atomosContent the Atomos content
+     * @return true if the content can be activated lazily
+     */
+    protected boolean canActivateLazily(AtomosContentBase atomosContent)
+    {
+        return false;
+    }
+
+    /**
+     * Called when the bundle of the specified content is started with its
+     * activation policy and waits for a class to be loaded from it.
+     * @param atomosContent the Atomos content
+     */
+    protected void lazyActivationPending(AtomosContentBase atomosContent)
+    {
+        // nothing by default
     }
 
     protected final void lockWrite()
@@ -189,25 +303,20 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected final AtomosContentBase getByConnectLocation(String location, boolean isManaged)
     {
-        lockRead();
-        try
+        AtomosContentBase result = null;
+        if (location != null)
         {
-            AtomosContentBase result = null;
             if (isManaged && !Constants.SYSTEM_BUNDLE_LOCATION.equals(location))
             {
-                result = connectedLocations.get(location);
+                result = indexes.connectedLocations.get(location);
             }
             else
             {
-                result = connectLocationToAtomosContent.get(location);
+                result = indexes.connectLocationToAtomosContent.get(location);
             }
-            debug("Found content %s for location: %s %s", result, location, isManaged);
-            return result;
-        }
-        finally
-        {
-            unlockRead();
         }
+        debug("Found content %s for location: %s %s", result, location, isManaged);
+        return result;
     }
 
     final void connectAtomosContent(
@@ -222,23 +331,12 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         lockWrite();
         try
         {
-            AtomosContent existing = connectLocationToAtomosContent.get(connectLocation);
-            if (existing != null && !atomosContent.equals(existing))
+            addConnectLocation(connectLocation, atomosContent);
+            AtomosJournal current = journal;
+            if (current != null)
             {
-                throw new IllegalStateException(
-                    "The bundle location is already used by the AtomosContent "
-                        + existing);
+                current.connect(atomosContent.getAtomosLocation(), connectLocation);
             }
-            String computeLocation = atomosContentToConnectLocation.compute(atomosContent,
-                (c, l) -> l == null ? connectLocation : l);
-
-            if (!Objects.equals(connectLocation, computeLocation))
-            {
-                throw new IllegalStateException(
-                    "Atomos content location is already set: " + computeLocation);
-            }
-            connectLocationToAtomosContent.put(connectLocation, atomosContent);
-            atomosKeyToConnectLocation.put(atomosContent.getKey(), connectLocation);
         }
         finally
         {
@@ -246,6 +344,29 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         }
     }
 
+    private void addConnectLocation(String connectLocation,
+        AtomosContentBase atomosContent)
+    {
+        AtomosContent existing = indexes.connectLocationToAtomosContent.get(
+            connectLocation);
+        if (existing != null && !atomosContent.equals(existing))
+        {
+            throw new IllegalStateException(
+                "The bundle location is already used by the AtomosContent "
+                    + existing);
+        }
+        String computeLocation = indexes.atomosContentToConnectLocation.computeIfAbsent(
+            atomosContent, (c) -> connectLocation);
+
+        if (!Objects.equals(connectLocation, computeLocation))
+        {
+            throw new IllegalStateException(
+                "Atomos content location is already set: " + computeLocation);
+        }
+        indexes.atomosKeyToConnectLocation.put(atomosContent.getKey(), connectLocation);
+        indexes.connectLocationToAtomosContent.put(connectLocation, atomosContent);
+    }
+
     void disconnectAtomosContent(AtomosContentBase atomosContent)
     {
         debug("Disconnecting connent: %s", atomosContent);
@@ -258,17 +379,21 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
                 throw new UnsupportedOperationException(
                     "Cannot disconnect the system bundle content");
             }
-            String removedLocation = atomosContentToConnectLocation.remove(atomosContent);
-            if (removedLocation != null)
+            if (!indexes.atomosContentToConnectLocation.containsKey(atomosContent))
             {
-                debug("Disconnecting location: %s %s", removedLocation, atomosContent);
-                connectLocationToAtomosContent.remove(removedLocation);
-                atomosKeyToConnectLocation.remove(atomosContent.getKey());
-                connectedLocations.remove(removedLocation);
+                debug("No connected location found for content: %s", atomosContent);
+                return;
             }
-            else
+            String removedLocation = indexes.atomosContentToConnectLocation.remove(
+                atomosContent);
+            debug("Disconnecting location: %s %s", removedLocation, atomosContent);
+            indexes.connectLocationToAtomosContent.remove(removedLocation);
+            indexes.atomosKeyToConnectLocation.remove(atomosContent.getKey());
+            indexes.connectedLocations.remove(removedLocation);
+            AtomosJournal current = journal;
+            if (current != null)
             {
-                debug("No connected location found for content: %s", atomosContent);
+                current.disconnect(atomosContent.getAtomosLocation());
             }
         }
         finally
@@ -279,41 +404,28 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     final AtomosContentBase getByAtomosLocation(String location)
     {
-        lockRead();
-        try
-        {
-            return atomosLocationToAtomosContent.get(location);
-        }
-        finally
-        {
-            unlockRead();
-        }
+        return location == null ? null : indexes.atomosLocationToAtomosContent.get(location);
     }
 
     protected final AtomosLayerBase getById(long id)
     {
-        lockRead();
-        try
-        {
-            return idToLayer.get(id);
-        }
-        finally
-        {
-            unlockRead();
-        }
+        return indexes.idToLayer.get(id);
     }
 
     final String getByAtomosContent(AtomosContent atomosContent)
     {
-        lockRead();
-        try
-        {
-            return atomosContentToConnectLocation.get(atomosContent);
-        }
-        finally
-        {
-            unlockRead();
-        }
+        return atomosContent == null ? null
+            : indexes.atomosContentToConnectLocation.get(atomosContent);
+    }
+
+    /**
+     * Returns the connect location for the Atomos content with the specified key.
+     * @param atomosKey the key of the Atomos content
+     * @return the connect location or {@code null} if the content is not connected
+     */
+    protected final String getByAtomosKey(Object atomosKey)
+    {
+        return atomosKey == null ? null : indexes.atomosKeyToConnectLocation.get(atomosKey);
     }
 
     @Override
@@ -423,7 +535,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         atomosContent.connect(location);
 
         Bundle result = null;
-        try
+        try (Span install = timeline.begin("install", location))
         {
             result = bc.installBundle(location);
         }
@@ -453,7 +565,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         lockWrite();
         try
         {
-            connectedLocations.compute(location, (l, a) -> {
+            indexes.connectedLocations.compute(location, (l, a) -> {
                 if (a == null || a == atomosBundle)
                 {
                     return atomosBundle;
@@ -496,17 +608,24 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             case BundleEvent.UNINSTALLED :
                 connectionManaged = false;
                 break;
+            case BundleEvent.LAZY_ACTIVATION :
+                AtomosContentBase lazyContent = getByConnectLocation(location, true);
+                if (lazyContent != null)
+                {
+                    lazyActivationPending(lazyContent);
+                }
+                break;
             default:
                 break;
         }
 
-        if (!connectionManaged)
+        if (!connectionManaged && indexes.connectedLocations.containsKey(location))
         {
             lockWrite();
             try
             {
                 debug("Removing location %s as a connected location.", location);
-                connectedLocations.remove(location);
+                indexes.connectedLocations.remove(location);
             }
             finally
             {
@@ -517,32 +636,57 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected final void addAtomosLayer(AtomosLayerBase atomosLayer)
     {
-        addingLayer(atomosLayer);
-        if (idToLayer.putIfAbsent(atomosLayer.getId(), atomosLayer) != null)
-        {
-            throw new IllegalStateException(
-                "AtomosLayer already exists for id: " + atomosLayer.getId());
-        }
-
-        for (AtomosContent atomosContent : atomosLayer.getAtomosContents())
+        lockWrite();
+        try
         {
-            if (atomosLocationToAtomosContent.putIfAbsent(
-                atomosContent.getAtomosLocation(), (AtomosContentBase) atomosContent) != null)
+            addingLayer(atomosLayer);
+            atomosLayer.initHierarchy();
+            if (indexes.idToLayer.containsKey(atomosLayer.getId()))
             {
-                throw new IllegalStateException("Atomos content location already exists: "
-                    + atomosContent.getAtomosLocation());
+                throw new IllegalStateException(
+                    "AtomosLayer already exists for id: " + atomosLayer.getId());
             }
+            // check all the contents before the indexes are changed
+            for (AtomosContent atomosContent : atomosLayer.getAtomosContents())
+            {
+                if (indexes.atomosLocationToAtomosContent.containsKey(
+                    atomosContent.getAtomosLocation()))
+                {
+                    throw new IllegalStateException(
+                        "Atomos content location already exists: "
+                            + atomosContent.getAtomosLocation());
+                }
+            }
+            indexes.idToLayer.put(atomosLayer.getId(), atomosLayer);
 
-            if (Constants.SYSTEM_BUNDLE_LOCATION.equals(atomosContent.getAtomosLocation()))
+            for (AtomosContent atomosContent : atomosLayer.getAtomosContents())
             {
-                // system bundle location is always marked as connected
-                connectAtomosContent(Constants.SYSTEM_BUNDLE_LOCATION,
-                    (AtomosContentBase) atomosContent);
+                indexes.atomosLocationToAtomosContent.put(
+                    atomosContent.getAtomosLocation(), (AtomosContentBase) atomosContent);
+
+                if (Constants.SYSTEM_BUNDLE_LOCATION.equals(
+                    atomosContent.getAtomosLocation()))
+                {
+                    // system bundle location is always marked as connected
+                    debug("Connecting content: %s %s", atomosContent,
+                        Constants.SYSTEM_BUNDLE_LOCATION);
+                    addConnectLocation(Constants.SYSTEM_BUNDLE_LOCATION,
+                        (AtomosContentBase) atomosContent);
+                }
+            }
+            for (AtomosLayer parent : atomosLayer.getParents())
+            {
+                ((AtomosLayerBase) parent).addChild(atomosLayer);
+            }
+            AtomosJournal current = journal;
+            if (current != null)
+            {
+                current.addLayer(atomosLayer);
             }
         }
-        for (AtomosLayer parent : atomosLayer.getParents())
+        finally
         {
-            ((AtomosLayerBase) parent).addChild(atomosLayer);
+            unlockWrite();
         }
     }
 
@@ -560,6 +704,8 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         private final List<Path> paths;
         private volatile boolean valid = true;
         private volatile Map<String, AtomosContent> nameToBundle;
+        // The ids of this layer and all of its ancestor layers; never modified once published
+        private volatile BitSet hierarchy = new BitSet();
 
         public AtomosLayerBase(List<AtomosLayer> parents, long id, String name, LoaderType loaderType, Path... paths)
         {
@@ -601,6 +747,24 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             children.remove(child);
         }
 
+        final void initHierarchy()
+        {
+            BitSet result = new BitSet();
+            result.set(Math.toIntExact(getId()));
+            for (AtomosLayer parent : getParents())
+            {
+                result.or(((AtomosLayerBase) parent).hierarchy);
+            }
+            hierarchy = result;
+        }
+
+        final boolean isInHierarchy(AtomosLayer candLayer)
+        {
+            long candId = candLayer.getId();
+            return candId <= Integer.MAX_VALUE && hierarchy.get((int) candId)
+                && getById(candId) == candLayer;
+        }
+
         protected Set<AtomosContentBase> findClassPathAtomosContents()
         {
             // first get the boot modules
@@ -619,6 +783,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
                         parentManifests.add(eParentManifests.nextElement());
                     }
                 }
+                List<URL> manifests = new ArrayList<>();
                 Enumeration<URL> classpathManifests = cl.getResources(
                     JarFile.MANIFEST_NAME);
                 while (classpathManifests.hasMoreElements())
@@ -629,57 +794,45 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
                         // ignore parent manifests
                         continue;
                     }
-                    Attributes headers = new Manifest(
-                        manifest.openStream()).getMainAttributes();
-                    String symbolicName = headers.getValue(Constants.BUNDLE_SYMBOLICNAME);
-                    if (symbolicName != null)
+                    manifests.add(manifest);
+                }
+
+                int threads = Math.min(
+                    Integer.getInteger(ATOMOS_DISCOVERY_THREADS_PROP,
+                        Runtime.getRuntime().availableProcessors()),
+                    manifests.size());
+                // outer JARs indexed for their nested JARs; only needed during discovery
+                Map<File, JarEntryIndex> outers = new ConcurrentHashMap<>();
+                try (Span discovery = timeline.begin("discovery",
+                    "class path " + getName()))
+                {
+                    int found = 0;
+                    // results are added in class path order regardless of the number of threads
+                    for (AtomosContentBase content : findClassPathAtomosContents(
+                        manifests, threads, outers))
                     {
-                        int semiColon = symbolicName.indexOf(';');
-                        if (semiColon != -1)
+                        if (content != null)
                         {
-                            symbolicName = symbolicName.substring(0, semiColon);
+                            bootBundles.add(content);
+                            found++;
                         }
-                        symbolicName = symbolicName.trim();
-
-                        Object content = getBundleContent(manifest);
-                        if (content != null)
+                    }
+                    // shown by the timeline command
+                    discovery.setDetail(String.format(
+                        "%s contents from %s manifests using %s threads", found,
+                        manifests.size(), Math.max(threads, 1)));
+                }
+                finally
+                {
+                    for (JarEntryIndex outer : outers.values())
+                    {
+                        try
+                        {
+                            outer.close();
+                        }
+                        catch (IOException e)
                         {
-                            ConnectContent connectContent;
-                            URL url;
-                            if (content instanceof File)
-                            {
-                                connectContent = new FileConnectContent((File) content);
-                                url = ((File) content).toURI().toURL();
-
-                            }
-                            else
-                            {
-                                connectContent = new JarConnectContent((JarFile) content);
-                                url = new File(
-                                    ((JarFile) content).getName()).toURI().toURL();
-                            }
-
-                            String location;
-                            if (connectContent.getEntry(
-                                "META-INF/services/org.osgi.framework.launch.FrameworkFactory").isPresent())
-                            {
-                                location = Constants.SYSTEM_BUNDLE_LOCATION;
-                            }
-                            else
-                            {
-                                location = content instanceof File
-                                    ? ((File) content).getPath()
-                                    : ((JarFile) content).getName();
-                                if (!getName().isEmpty())
-                                {
-                                    location = getName() + ":" + location;
-                                }
-                            }
-                            Version version = Version.parseVersion(
-                                headers.getValue(Constants.BUNDLE_VERSION));
-
-                            bootBundles.add(new AtomosContentClassPath(location,
-                                symbolicName, version, connectContent, url));
+                            debug("Failed to close outer JAR: %s", e);
                         }
                     }
                 }
@@ -691,19 +844,220 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             return Collections.unmodifiableSet(bootBundles);
         }
 
+        private List<AtomosContentBase> findClassPathAtomosContents(List<URL> manifests,
+            int threads, Map<File, JarEntryIndex> outers) throws IOException
+        {
+            List<AtomosContentBase> result = new ArrayList<>(manifests.size());
+            if (threads <= 1)
+            {
+                for (URL manifest : manifests)
+                {
+                    result.add(findClassPathAtomosContent(manifest, outers));
+                }
+                return result;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try
+            {
+                List<Future<AtomosContentBase>> futures = new ArrayList<>(
+                    manifests.size());
+                for (URL manifest : manifests)
+                {
+                    futures.add(pool.submit(() -> findClassPathAtomosContent(manifest, outers)));
+                }
+                for (Future<AtomosContentBase> future : futures)
+                {
+                    result.add(future.get());
+                }
+                return result;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted finding class path bundles.",
+                    e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Error finding class path bundles.",
+                    cause);
+            }
+            finally
+            {
+                // the outer JARs are closed once this returns; let running tasks end first
+                pool.shutdownNow();
+                try
+                {
+                    pool.awaitTermination(1, TimeUnit.MINUTES);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Returns the Atomos content for the specified class path manifest.
+         * @param manifest the manifest URL
+         * @param outers the indexes of outer JARs of nested JARs
+         * @return the Atomos content or {@code null} if the manifest is not for a bundle
+         * @throws IOException if an error occurred reading the manifest
+         */
+        private AtomosContentBase findClassPathAtomosContent(URL manifest,
+            Map<File, JarEntryIndex> outers) throws IOException
+        {
+            String key = manifest.toString();
+            File fingerprint = AtomosDiscoveryCache.getFile(manifest);
+            DiscoveredContent cached = discoveryCache.get(key, fingerprint);
+            if (cached != null)
+            {
+                if (cached.getKind() == ContentKind.NONE)
+                {
+                    return null;
+                }
+                AtomosContentBase jarContent = newCachedJarContent(manifest, fingerprint,
+                    cached);
+                if (jarContent != null)
+                {
+                    return jarContent;
+                }
+                Object content = getBundleContent(manifest, outers);
+                boolean isDirectory = cached.getKind() == ContentKind.DIRECTORY;
+                if (content != null && (content instanceof File) == isDirectory)
+                {
+                    return newClassPathContent(content, newConnectContent(content),
+                        cached.getLocation(), cached.getSymbolicName(),
+                        cached.getVersion());
+                }
+                // the content changed kind; discover it again
+            }
+
+            Attributes headers;
+            try (InputStream in = manifest.openStream())
+            {
+                headers = new Manifest(in).getMainAttributes();
+            }
+            String symbolicName = headers.getValue(Constants.BUNDLE_SYMBOLICNAME);
+            if (symbolicName == null)
+            {
+                discoveryCache.put(key, fingerprint, ContentKind.NONE, null, null, null);
+                return null;
+            }
+            int semiColon = symbolicName.indexOf(';');
+            if (semiColon != -1)
+            {
+                symbolicName = symbolicName.substring(0, semiColon);
+            }
+            symbolicName = symbolicName.trim();
+
+            Object content = getBundleContent(manifest, outers);
+            if (content == null)
+            {
+                return null;
+            }
+            ConnectContent connectContent = newConnectContent(content);
+            String location;
+            if (connectContent.getEntry(
+                "META-INF/services/org.osgi.framework.launch.FrameworkFactory").isPresent())
+            {
+                location = Constants.SYSTEM_BUNDLE_LOCATION;
+            }
+            else
+            {
+                location = content instanceof File ? ((File) content).getPath()
+                    : content instanceof NestedJarConnectContent
+                        ? ((NestedJarConnectContent) content).getName()
+                        : ((JarFile) content).getName();
+                if (!getName().isEmpty())
+                {
+                    location = getName() + ":" + location;
+                }
+            }
+            Version version = Version.parseVersion(
+                headers.getValue(Constants.BUNDLE_VERSION));
+
+            discoveryCache.put(key, fingerprint,
+                content instanceof File ? ContentKind.DIRECTORY : ContentKind.JAR,
+                symbolicName, version, location);
+            return newClassPathContent(content, connectContent, location, symbolicName,
+                version);
+        }
+
+        /**
+         * Returns the content of a cached JAR that is not nested without opening
+         * the JAR.  The JAR is opened when the content is first used.
+         * @return the content or {@code null} if the JAR must be opened to create it
+         */
+        private AtomosContentBase newCachedJarContent(URL manifest, File jar,
+            DiscoveredContent cached) throws IOException
+        {
+            String spec = manifest.toString();
+            if (jar == null || cached.getKind() != ContentKind.JAR
+                || !JAR_PROTOCOL.equals(manifest.getProtocol())
+                || spec.indexOf("!/") != spec.lastIndexOf("!/"))
+            {
+                return null;
+            }
+            return new AtomosContentClassPath(cached.getLocation(),
+                cached.getSymbolicName(), cached.getVersion(), new JarConnectContent(jar),
+                jar.toURI().toURL());
+        }
+
+        private ConnectContent newConnectContent(Object content)
+        {
+            if (content instanceof NestedJarConnectContent)
+            {
+                return (NestedJarConnectContent) content;
+            }
+            return content instanceof File ? new FileConnectContent((File) content)
+                : new JarConnectContent((JarFile) content);
+        }
+
+        private AtomosContentBase newClassPathContent(Object content,
+            ConnectContent connectContent, String location, String symbolicName,
+            Version version) throws IOException
+        {
+            URL url = content instanceof File ? ((File) content).toURI().toURL()
+                : content instanceof NestedJarConnectContent
+                    ? ((NestedJarConnectContent) content).getURL()
+                    : new File(((JarFile) content).getName()).toURI().toURL();
+            return new AtomosContentClassPath(location, symbolicName, version,
+                connectContent, url);
+        }
+
         protected abstract void findBootLayerAtomosContents(
             Set<AtomosContentBase> result);
 
         /**
          * Returns the bundle content that contains the specified manifest URL.
-         * The return type will be a JarFile or a File for an exploded bundle.
+         * The return type will be a JarFile, a NestedJarConnectContent for a
+         * JAR nested in another JAR or a File for an exploded bundle.
          * @param manifest the manifest URL to get the bundle content for
-         * @return a JarFile or File
+         * @param outers the indexes of outer JARs of nested JARs
+         * @return a JarFile, NestedJarConnectContent or File
          */
-        private Object getBundleContent(URL manifest)
+        private Object getBundleContent(URL manifest, Map<File, JarEntryIndex> outers)
         {
             if (JAR_PROTOCOL.equals(manifest.getProtocol()))
             {
+                // read a nested jar in place instead of relying on the loader's
+                // JarFile, which may extract or inflate the whole nested jar
+                NestedJarConnectContent nested = NestedJarConnectContent.fromManifest(
+                    manifest, outers);
+                if (nested != null)
+                {
+                    return nested;
+                }
                 // Use a connection to get the JarFile this avoids having to parse the jar: URL
                 // For spring loader they support nested jars with additional !/
                 // For example: 
@@ -812,7 +1166,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             }
         }
 
-        private void removeLayerFromRuntime()
+        final void removeLayerFromRuntime()
         {
             for (AtomosLayer parent : getParents())
             {
@@ -823,8 +1177,15 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
                 ((AtomosLayerBase) child).removeLayerFromRuntime();
             }
             getAtomosContents().forEach(c -> c.disconnect());
-            idToLayer.remove(getId());
+            // a removed layer is no longer in the hierarchy of any layer
+            hierarchy = new BitSet();
+            indexes.idToLayer.remove(getId());
             removedLayer(this);
+            AtomosJournal current = journal;
+            if (current != null)
+            {
+                current.removeLayer(this);
+            }
         }
 
         final void uninstallLayer(List<Bundle> uninstalledBundles, BundleContext bc)
@@ -1127,14 +1488,34 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected final String getConnectLocation(Class<?> classFromBundle)
     {
-        lockRead();
-        try
+        AtomosKey cached = atomosKeys.get(classFromBundle);
+        if (cached.generation != keyGeneration.get())
         {
-            return atomosKeyToConnectLocation.get(getAtomosKey(classFromBundle));
+            atomosKeys.remove(classFromBundle);
+            cached = atomosKeys.get(classFromBundle);
         }
-        finally
+        // connecting and disconnecting contents only changes the key index
+        return getByAtomosKey(cached.key);
+    }
+
+    /**
+     * Discards the cached Atomos keys of classes.  Must be called after a change
+     * that can alter the Atomos key of a class that may already be cached.
+     */
+    protected final void invalidateAtomosKeys()
+    {
+        keyGeneration.incrementAndGet();
+    }
+
+    private static final class AtomosKey
+    {
+        final Object key;
+        final long generation;
+
+        AtomosKey(Object key, long generation)
         {
-            unlockRead();
+            this.key = key;
+            this.generation = generation;
         }
     }
 
@@ -1145,18 +1526,22 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected abstract void filterBasedOnReadEdges(
         AtomosContent atomosContent,
-        Collection<BundleCapability> candidates);
+        Collection<BundleCapability> candidates,
+        VisibilityCache visibility);
 
     protected final void filterNotVisible(
         AtomosContent atomosContent,
-        Collection<BundleCapability> candidates)
+        Collection<BundleCapability> candidates,
+        VisibilityCache visibility)
     {
         if (atomosContent != null)
         {
+            AtomosLayer thisLayer = atomosContent.getAtomosLayer();
             for (Iterator<BundleCapability> iCands = candidates.iterator(); iCands.hasNext();)
             {
                 BundleCapability candidate = iCands.next();
-                if (!isVisible(atomosContent, candidate))
+                if (!visibility.isVisible(thisLayer,
+                    candidate.getRevision().getBundle().getLocation(), this::isVisible))
                 {
                     iCands.remove();
                 }
@@ -1165,11 +1550,10 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
     }
 
     private final boolean isVisible(
-        AtomosContent atomosContent,
-        BundleCapability candidate)
+        AtomosLayer thisLayer,
+        String candidateLocation)
     {
-        AtomosContent candidateAtomos = getByConnectLocation(
-            candidate.getRevision().getBundle().getLocation(), true);
+        AtomosContent candidateAtomos = getByConnectLocation(candidateLocation, true);
         if (candidateAtomos == null)
         {
             // atomos connected content cannot see normal bundles
@@ -1177,7 +1561,6 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         }
         else
         {
-            AtomosLayer thisLayer = atomosContent.getAtomosLayer();
             return isInLayerHierarchy(thisLayer, candidateAtomos.getAtomosLayer());
         }
     }
@@ -1188,14 +1571,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         {
             return true;
         }
-        for (AtomosLayer parent : thisLayer.getParents())
-        {
-            if (isInLayerHierarchy(parent, candLayer))
-            {
-                return true;
-            }
-        }
-        return false;
+        return ((AtomosLayerBase) thisLayer).isInHierarchy(candLayer);
     }
 
     @SuppressWarnings("unchecked")
@@ -1210,7 +1586,7 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         {
             try
             {
-                new AtomosStorage(this).saveLayers(storeRoot.get(), bc.getBundles());
+                saveStore(bc);
             }
             catch (IOException e)
             {
@@ -1221,6 +1597,11 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     protected void start(BundleContext bc) throws BundleException
     {
+        String debugProp = bc.getProperty(ATOMOS_DEBUG_PROP);
+        if (debugProp != null)
+        {
+            setDebug(Boolean.parseBoolean(debugProp));
+        }
         debug("Activating Atomos runtime");
         this.context.set(bc);
         Runtime.getRuntime().addShutdownHook(saveOnVMExit);
@@ -1236,7 +1617,26 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             getProperty(bc, AtomosRuntime.ATOMOS_CONTENT_INSTALL, "true"));
         boolean startBundles = Boolean.valueOf(
             getProperty(bc, AtomosRuntime.ATOMOS_CONTENT_START, "true"));
-        installAtomosContents(getBootLayer(), installBundles, startBundles);
+        boolean parallel = Boolean.valueOf(
+            getProperty(bc, AtomosRuntime.ATOMOS_CONTENT_PARALLEL, "false"));
+        lazyActivation = Boolean.valueOf(
+            getProperty(bc, AtomosRuntime.ATOMOS_CONTENT_LAZY, "false"));
+        if (lazyActivation && !canActivateLazily(getBootLayer()))
+        {
+            warn("%s has no effect because no content of %s can be activated lazily.",
+                AtomosRuntime.ATOMOS_CONTENT_LAZY, getBootLayer());
+        }
+        int startOptions = lazyActivation ? Bundle.START_ACTIVATION_POLICY : 0;
+        if (installBundles && parallel)
+        {
+            new ParallelContentInstaller(this, bc).installAtomosContents(getBootLayer(),
+                startBundles, startOptions);
+        }
+        else
+        {
+            installAtomosContents(getBootLayer(), installBundles, startBundles,
+                startOptions);
+        }
         bc.registerService(AtomosRuntime.class, this, null);
         new AtomosCommands(this).register(bc);
     }
@@ -1248,23 +1648,57 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
         try
         {
             Runtime.getRuntime().removeShutdownHook(saveOnVMExit);
-            new AtomosStorage(this).saveLayers(storeRoot.get(), bc.getBundles());
+            saveStore(bc);
         }
         catch (IllegalStateException e)
         {
             // ignore this; happens if the JVM already is in the process of running shutdown hooks
-            // in that case we can skip saveLayers call
+            // in that case we can skip saveStore call
         }
         catch (IOException e)
         {
             throw new BundleException("Failed to save atomos runtime.", e);
         }
+        finally
+        {
+            AtomosJournal current = journal;
+            if (current != null)
+            {
+                journal = null;
+                current.close();
+            }
+        }
 
         bc.removeBundleListener(this);
 
         AtomosFrameworkUtilHelper.removeHelper(this);
     }
 
+    /**
+     * Forces the journal to disk.  The full store is only written if
+     * the journal is not available.
+     */
+    private void saveStore(BundleContext bc) throws IOException
+    {
+        File root = storeRoot.get();
+        AtomosJournal current = journal;
+        if (current == null || !current.sync())
+        {
+            new AtomosStorage(this).saveLayers(root, bc.getBundles());
+        }
+        getDiscoveryCache().save();
+        saveCaches();
+    }
+
+    /**
+     * Saves the state a runtime keeps outside of the store.  Called along with
+     * the store when the runtime stops and from the shutdown hook.
+     */
+    protected void saveCaches()
+    {
+        // nothing by default
+    }
+
     private String getProperty(BundleContext bc, String key, String defaultValue)
     {
         String result = bc.getProperty(key);
@@ -1273,7 +1707,8 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
 
     private void installAtomosContents(AtomosLayer atomosLayer,
         boolean installBundles,
-        boolean startBundles) throws BundleException
+        boolean startBundles,
+        int startOptions) throws BundleException
     {
         if (installBundles)
         {
@@ -1296,17 +1731,55 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
                     BundleRevision rev = b.adapt(BundleRevision.class);
                     if ((rev.getTypes() & BundleRevision.TYPE_FRAGMENT) == 0)
                     {
-                        b.start();
+                        startBundle(b, startOptions);
                     }
                 }
                 for (AtomosLayer child : atomosLayer.getChildren())
                 {
-                    installAtomosContents(child, installBundles, startBundles);
+                    installAtomosContents(child, installBundles, startBundles,
+                        startOptions);
                 }
             }
         }
     }
 
+    private boolean canActivateLazily(AtomosLayer atomosLayer)
+    {
+        for (AtomosContent atomosContent : atomosLayer.getAtomosContents())
+        {
+            if (canActivateLazily((AtomosContentBase) atomosContent))
+            {
+                return true;
+            }
+        }
+        for (AtomosLayer child : atomosLayer.getChildren())
+        {
+            if (canActivateLazily(child))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    final void startBundle(Bundle b, int startOptions) throws BundleException
+    {
+        if ((startOptions & Bundle.START_ACTIVATION_POLICY) != 0)
+        {
+            AtomosContentBase content = getByConnectLocation(b.getLocation(), false);
+            if (content == null || !canActivateLazily(content))
+            {
+                // nothing would ever activate the bundle so start it eagerly
+                debug("Starting %s eagerly, its classes cannot trigger activation.", b);
+                startOptions &= ~Bundle.START_ACTIVATION_POLICY;
+            }
+        }
+        try (Span start = timeline.begin("start", b.getLocation()))
+        {
+            b.start(startOptions);
+        }
+    }
+
     public void initialize(File storage, Map<String, String> configuration)
     {
         if (!storeRoot.compareAndSet(null, storage))
@@ -1314,28 +1787,113 @@ public abstract class AtomosRuntimeBase implements AtomosRuntime, SynchronousBun
             throw new IllegalStateException(
                 "This AtomosRuntime is already being used by store: " + storeRoot.get());
         }
+        lockWrite();
         try
         {
-            new AtomosStorage(this).loadLayers(storage);
+            AtomosStorage atomosStorage = new AtomosStorage(this);
+            try (Span load = timeline.begin("storage", "loadLayers"))
+            {
+                atomosStorage.loadLayers(storage);
+            }
+            try (Span replay = timeline.begin("storage", "replay journal"))
+            {
+                journal = new AtomosJournal(this, atomosStorage, storage);
+            }
         }
         catch (IOException e)
         {
             throw new UncheckedIOException(e);
         }
+        finally
+        {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * Returns true if debug messages are enabled.  Callers that must compute
+     * or box the arguments of a debug message should check this first.
+     * @return true if debug messages are enabled
+     */
+    public final boolean isDebug()
+    {
+        return debug;
+    }
+
+    /**
+     * Enables or disables debug messages.
+     * @param debug true to enable debug messages
+     */
+    public final void setDebug(boolean debug)
+    {
+        this.debug = debug;
+    }
+
+    public final void debug(String message)
+    {
+        if (debug)
+        {
+            printDebug(message);
+        }
     }
 
-    public void debug(String message, Object... args)
+    public final void debug(String message, Object arg1)
     {
-        if (DEBUG)
+        if (debug)
         {
-            try
-            {
-                System.out.println("ATOMOS DEBUG: " + String.format(message, args));
-            }
-            catch (Throwable t)
-            {
-                t.printStackTrace();
-            }
+            printDebug(message, arg1);
+        }
+    }
+
+    public final void debug(String message, Object arg1, Object arg2)
+    {
+        if (debug)
+        {
+            printDebug(message, arg1, arg2);
+        }
+    }
+
+    public final void debug(String message, Object arg1, Object arg2, Object arg3)
+    {
+        if (debug)
+        {
+            printDebug(message, arg1, arg2, arg3);
+        }
+    }
+
+    public final void debug(String message, Object... args)
+    {
+        if (debug)
+        {
+            printDebug(message, args);
+        }
+    }
+
+    /**
+     * Reports a problem with the runtime configuration whether or not debug
+     * messages are enabled.
+     */
+    final void warn(String message, Object... args)
+    {
+        try
+        {
+            System.out.println("ATOMOS WARNING: " + String.format(message, args));
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
+        }
+    }
+
+    private static void printDebug(String message, Object... args)
+    {
+        try
+        {
+            System.out.println("ATOMOS DEBUG: " + String.format(message, args));
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
         }
     }
 }
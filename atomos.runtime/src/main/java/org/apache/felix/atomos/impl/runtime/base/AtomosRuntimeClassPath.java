@@ -19,9 +19,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
 import org.apache.felix.atomos.runtime.AtomosContent;
 import org.apache.felix.atomos.runtime.AtomosLayer;
 import org.osgi.framework.connect.ConnectFrameworkFactory;
@@ -32,10 +34,20 @@ public class AtomosRuntimeClassPath extends AtomosRuntimeBase
 
     private final AtomosLayer bootLayer = createBootLayer();
 
+    public AtomosRuntimeClassPath()
+    {
+        this(null);
+    }
+
+    public AtomosRuntimeClassPath(Map<String, String> configuration)
+    {
+        super(configuration);
+    }
+
     private AtomosLayer createBootLayer()
     {
         lockWrite();
-        try
+        try (Span create = getTimeline().begin("layer", "boot"))
         {
             AtomosLayerBase result = new AtomosLayerClassPath(Collections.emptyList(),
                 nextLayerId.getAndIncrement(), "boot", LoaderType.SINGLE);
@@ -70,9 +82,9 @@ public class AtomosRuntimeClassPath extends AtomosRuntimeBase
 
     @Override
     protected void filterBasedOnReadEdges(AtomosContent atomosContent,
-        Collection<BundleCapability> candidates)
+        Collection<BundleCapability> candidates, VisibilityCache visibility)
     {
-        filterNotVisible(atomosContent, candidates);
+        filterNotVisible(atomosContent, candidates, visibility);
     }
 
     public class AtomosLayerClassPath extends AtomosLayerBase
@@ -13,21 +13,27 @@
  */
 package org.apache.felix.atomos.impl.runtime.base;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase;
@@ -38,10 +44,36 @@ import org.apache.felix.atomos.runtime.AtomosRuntime.LoaderType;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
 
+/**
+ * Persists the Atomos layers and connected contents in the framework storage.
+ * <p>
+ * The current format is read into a single buffer and decoded lazily.  All
+ * sections following the header are tables of fixed width records except the
+ * string data:
+ * <pre>
+ * header:   int version, long nextLayerId, int numStrings, int numLayers,
+ *           int numRefs, int numContents
+ * strings:  int[numStrings + 1] offsets into the string data, UTF-8 string data
+ * layers:   numLayers records of long id, int name, int loaderType,
+ *           int pathsStart, int numPaths, int parentsStart, int numParents,
+ *           int contentsStart, int numContents
+ * refs:     int[numRefs] string indexes for paths and layer indexes for parents
+ * contents: numContents records of int atomosLocation, int connectLocation
+ * </pre>
+ * Strings are referenced by their index in the string table, -1 is used for
+ * a {@code null} string.  Layers are written parents first so a parent always
+ * has a lower layer index than its children.  The stream format of
+ * version 1 is still read in order to migrate existing stores.
+ */
 public class AtomosStorage
 {
-    private final static int VERSION = 1;
+    private final static int VERSION_1 = 1;
+    private final static int VERSION = 2;
     private final static String ATOMOS_STORE = "atomosStore.data";
+    private final static int NO_STRING = -1;
+    private final static int HEADER_SIZE = 4 + 8 + 4 * 4;
+    private final static int LAYER_RECORD_SIZE = 8 + 8 * 4;
+    private final static int CONTENT_RECORD_SIZE = 2 * 4;
     private final AtomosRuntimeBase atomosRuntime;
 
     public AtomosStorage(AtomosRuntimeBase atomosRuntime)
@@ -51,27 +83,37 @@ public class AtomosStorage
 
     void loadLayers(File root) throws IOException
     {
+        File atomosStore = new File(root, ATOMOS_STORE);
         atomosRuntime.lockWrite();
-        try (DataInputStream in = new DataInputStream(
-            new BufferedInputStream(new FileInputStream(new File(root, ATOMOS_STORE)))))
+        try
         {
+            // read into the heap; a mapping would keep the file open until it is
+            // garbage collected, which prevents replacing the store on Windows
+            byte[] bytes = Files.readAllBytes(atomosStore.toPath());
             atomosRuntime.debug("Found %s in %s", ATOMOS_STORE, root);
-            int persistentVersion = in.readInt();
+            if (bytes.length < 4)
+            {
+                throw new IOException(
+                    "Atomos persistent store is truncated: " + atomosStore);
+            }
+            ByteBuffer store = ByteBuffer.wrap(bytes);
+            int persistentVersion = store.getInt(0);
             if (persistentVersion > VERSION)
             {
                 throw new IOException(
                     "Atomos persistent version is greater than supported version: "
                         + VERSION + "<" + persistentVersion);
             }
-            long nextLayerId = in.readLong();
-            int numLayers = in.readInt();
-            for (int i = 0; i < numLayers; i++)
+            if (persistentVersion == VERSION_1)
             {
-                readLayer(in);
+                loadLayersVersion1(bytes);
+            }
+            else
+            {
+                new StoreReader(store, atomosStore).loadLayers();
             }
-            atomosRuntime.nextLayerId.set(nextLayerId);
         }
-        catch (FileNotFoundException e)
+        catch (NoSuchFileException e)
         {
             // ignore no file
             atomosRuntime.debug("No %s found in %s", ATOMOS_STORE, root);
@@ -84,21 +126,20 @@ public class AtomosStorage
 
     void saveLayers(File root, Bundle[] bundles) throws IOException
     {
-        File atomosStore = new File(root, ATOMOS_STORE);
+        writeStore(root, snapshotLayers());
+    }
+
+    /**
+     * Returns the current layers and connected contents in the store format.
+     */
+    byte[] snapshotLayers()
+    {
         atomosRuntime.lockRead();
-        try (DataOutputStream out = new DataOutputStream(
-            new BufferedOutputStream(new FileOutputStream(atomosStore))))
-        {
-            out.writeInt(VERSION);
-            out.writeLong(atomosRuntime.nextLayerId.get());
-            List<AtomosLayerBase> writeOrder = getLayerWriteOrder(
-                (AtomosLayerBase) atomosRuntime.getBootLayer(), new HashSet<>(),
-                new ArrayList<>());
-            out.writeInt(writeOrder.size());
-            for (AtomosLayerBase layer : writeOrder)
-            {
-                writeLayer(layer, out);
-            }
+        try
+        {
+            return new StoreWriter(atomosRuntime.nextLayerId.get(),
+                getLayerWriteOrder((AtomosLayerBase) atomosRuntime.getBootLayer(),
+                    new HashSet<>(), new ArrayList<>())).toByteArray();
         }
         finally
         {
@@ -106,6 +147,42 @@ public class AtomosStorage
         }
     }
 
+    /**
+     * Replaces the store in the specified root with a snapshot.
+     */
+    void writeStore(File root, byte[] snapshot) throws IOException
+    {
+        File atomosStore = new File(root, ATOMOS_STORE);
+        // write a temporary file first so a failed write never loses the store
+        File tmpStore = new File(root, ATOMOS_STORE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpStore))
+        {
+            out.write(snapshot);
+            out.getFD().sync();
+        }
+        replace(tmpStore.toPath(), atomosStore.toPath());
+    }
+
+    /**
+     * Moves the source file over the target file, atomically if the file
+     * system supports it.
+     * @param source the file to move
+     * @param target the file to replace
+     * @throws IOException if the file could not be moved
+     */
+    public static void replace(Path source, Path target) throws IOException
+    {
+        try
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     private List<AtomosLayerBase> getLayerWriteOrder(AtomosLayer layer,
         Set<AtomosLayer> visited, List<AtomosLayerBase> result)
     {
@@ -131,116 +208,391 @@ public class AtomosStorage
         return result;
     }
 
-    private void readLayer(DataInputStream in) throws IOException
+    void addLayer(String name, long id, LoaderType loaderType, Path[] paths,
+        List<AtomosLayer> parents)
+    {
+        atomosRuntime.debug("Loading layer %s %s %s", name, id, loaderType);
+        if (atomosRuntime.getById(id) == null)
+        {
+            try
+            {
+                atomosRuntime.addLayer(parents, name, id, loaderType, paths);
+            }
+            catch (Exception e)
+            {
+                throw new IllegalArgumentException(
+                    "Error adding persistent layer: " + e.getMessage());
+            }
+        }
+    }
+
+    AtomosLayerBase getParent(long parentId)
+    {
+        AtomosLayerBase parent = atomosRuntime.getById(parentId);
+        if (parent == null)
+        {
+            throw new IllegalArgumentException("Missing parent with id: " + parentId);
+        }
+        return parent;
+    }
+
+    Path toPath(String sURI) throws IOException
+    {
+        try
+        {
+            URI uri = new URI(sURI);
+            // TODO on Java 11 should use Path.of()
+            return new File(uri).toPath();
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    void connectContent(String atomosLocation, String connectLocation)
+    {
+        atomosRuntime.debug("Found Atomos location %s", atomosLocation);
+        if (connectLocation == null)
+        {
+            return;
+        }
+        atomosRuntime.debug("Found connected location %s", connectLocation);
+        if (Constants.SYSTEM_BUNDLE_LOCATION.equals(connectLocation))
+        {
+            // don't do anything for the system bundle, it is already connected
+            return;
+        }
+        AtomosContentBase atomosContent = atomosRuntime.getByAtomosLocation(
+            atomosLocation);
+        if (atomosContent != null)
+        {
+            atomosRuntime.connectAtomosContent(connectLocation, atomosContent);
+        }
+        else
+        {
+            atomosRuntime.debug("Unable to find atomos content for location %s",
+                atomosLocation);
+        }
+    }
+
+    /**
+     * Reads the stream format of version 1.
+     */
+    private void loadLayersVersion1(byte[] atomosStore) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(atomosStore)))
+        {
+            // skip the version
+            in.readInt();
+            long nextLayerId = in.readLong();
+            int numLayers = in.readInt();
+            for (int i = 0; i < numLayers; i++)
+            {
+                readLayerVersion1(in);
+            }
+            atomosRuntime.nextLayerId.set(nextLayerId);
+        }
+    }
+
+    private void readLayerVersion1(DataInputStream in) throws IOException
     {
         String name = in.readUTF();
         long id = in.readLong();
         LoaderType loaderType = LoaderType.valueOf(in.readUTF());
-        atomosRuntime.debug("Loading layer %s %s %s", name, id, loaderType);
 
         int numPaths = in.readInt();
         Path[] paths = new Path[numPaths];
         for (int i = 0; i < numPaths; i++)
         {
-            String sURI = in.readUTF();
-            try
+            paths[i] = toPath(in.readUTF());
+        }
+        int numParents = in.readInt();
+        List<AtomosLayer> parents = new ArrayList<>();
+        for (int i = 0; i < numParents; i++)
+        {
+            parents.add(getParent(in.readLong()));
+        }
+        addLayer(name, id, loaderType, paths, parents);
+
+        int numBundles = in.readInt();
+        for (int i = 0; i < numBundles; i++)
+        {
+            String atomosLocation = in.readUTF();
+            String connectLocation = in.readBoolean() ? in.readUTF() : null;
+            connectContent(atomosLocation, connectLocation);
+        }
+    }
+
+    /**
+     * Reads the current format from a buffer.  Strings are only decoded when
+     * they are used.
+     */
+    private final class StoreReader
+    {
+        private final ByteBuffer store;
+        private final File atomosStore;
+        private final long nextLayerId;
+        private final int numLayers;
+        private final int numRefs;
+        private final int numContents;
+        private final int stringOffsets;
+        private final int stringData;
+        private final int stringDataSize;
+        private final int layers;
+        private final int refs;
+        private final int contents;
+        private final String[] strings;
+
+        StoreReader(ByteBuffer store, File atomosStore) throws IOException
+        {
+            this.store = store;
+            this.atomosStore = atomosStore;
+            check(store.limit() >= HEADER_SIZE, "truncated header");
+            nextLayerId = store.getLong(4);
+            int numStrings = store.getInt(12);
+            numLayers = store.getInt(16);
+            numRefs = store.getInt(20);
+            numContents = store.getInt(24);
+            check(numStrings >= 0 && numLayers >= 0 && numRefs >= 0 && numContents >= 0,
+                "negative table size");
+            stringOffsets = HEADER_SIZE;
+            long dataStart = stringOffsets + (numStrings + 1) * 4L;
+            check(dataStart <= store.limit(), "string table past the end");
+            stringData = (int) dataStart;
+            stringDataSize = store.getInt(stringOffsets + numStrings * 4);
+            long end = dataStart + stringDataSize;
+            check(stringDataSize >= 0 && end <= store.limit(), "string data past the end");
+            layers = (int) end;
+            end += numLayers * (long) LAYER_RECORD_SIZE;
+            check(end <= store.limit(), "layers past the end");
+            refs = (int) end;
+            end += numRefs * 4L;
+            check(end <= store.limit(), "refs past the end");
+            contents = (int) end;
+            end += numContents * (long) CONTENT_RECORD_SIZE;
+            check(end <= store.limit(), "contents past the end");
+            strings = new String[numStrings];
+        }
+
+        private void check(boolean valid, String problem) throws IOException
+        {
+            if (!valid)
             {
-                URI uri = new URI(sURI);
-                // TODO on Java 11 should use Path.of()
-                paths[i] = new File(uri).toPath();
+                throw new IOException(
+                    "Atomos persistent store is damaged (" + problem + "): " + atomosStore);
             }
-            catch (URISyntaxException e)
+        }
+
+        private void checkRange(int start, int length, int size, String table)
+            throws IOException
+        {
+            check(start >= 0 && length >= 0 && (long) start + length <= size,
+                "invalid " + table + " range");
+        }
+
+        void loadLayers() throws IOException
+        {
+            for (int i = 0; i < numLayers; i++)
             {
-                throw new IOException(e);
+                loadLayer(i);
             }
+            atomosRuntime.nextLayerId.set(nextLayerId);
         }
-        int numParents = in.readInt();
-        List<AtomosLayer> parents = new ArrayList<>();
-        for (int i = 0; i < numParents; i++)
+
+        private void loadLayer(int index) throws IOException
         {
-            long parentId = in.readLong();
-            AtomosLayerBase parent = atomosRuntime.getById(parentId);
-            if (parent == null)
+            int record = layers + index * LAYER_RECORD_SIZE;
+            long id = store.getLong(record);
+            String name = getString(store.getInt(record + 8));
+            LoaderType loaderType = getLoaderType(getString(store.getInt(record + 12)));
+
+            int pathsStart = store.getInt(record + 16);
+            int numPaths = store.getInt(record + 20);
+            checkRange(pathsStart, numPaths, numRefs, "paths");
+            Path[] paths = new Path[numPaths];
+            for (int i = 0; i < paths.length; i++)
+            {
+                String path = getString(getRef(pathsStart + i));
+                check(path != null, "no path");
+                paths[i] = toPath(path);
+            }
+            int parentsStart = store.getInt(record + 24);
+            int numParents = store.getInt(record + 28);
+            checkRange(parentsStart, numParents, numRefs, "parents");
+            List<AtomosLayer> parents = new ArrayList<>(numParents);
+            for (int i = 0; i < numParents; i++)
             {
-                throw new IllegalArgumentException("Missing parent with id: " + parentId);
+                int parent = getRef(parentsStart + i);
+                // parents are written first
+                check(parent >= 0 && parent < index, "invalid parent");
+                parents.add(getParent(store.getLong(layers + parent * LAYER_RECORD_SIZE)));
+            }
+            addLayer(name, id, loaderType, paths, parents);
+
+            int contentsStart = store.getInt(record + 32);
+            int layerContents = store.getInt(record + 36);
+            checkRange(contentsStart, layerContents, numContents, "contents");
+            for (int i = 0; i < layerContents; i++)
+            {
+                int content = contents + (contentsStart + i) * CONTENT_RECORD_SIZE;
+                connectContent(getString(store.getInt(content)),
+                    getString(store.getInt(content + 4)));
             }
-            parents.add(parent);
         }
-        if (atomosRuntime.getById(id) == null)
+
+        private LoaderType getLoaderType(String loaderType) throws IOException
         {
+            check(loaderType != null, "no loader type");
             try
             {
-                atomosRuntime.addLayer(parents, name, id, loaderType, paths);
+                return LoaderType.valueOf(loaderType);
             }
-            catch (Exception e)
+            catch (IllegalArgumentException e)
             {
-                throw new IllegalArgumentException(
-                    "Error adding persistent layer: " + e.getMessage());
+                throw new IOException(
+                    "Atomos persistent store is damaged: " + atomosStore, e);
             }
         }
 
-        int numBundles = in.readInt();
-        for (int i = 0; i < numBundles; i++)
+        private int getRef(int index)
         {
-            String atomosLocation = in.readUTF();
-            atomosRuntime.debug("Found Atomos location %s", atomosLocation);
-            if (in.readBoolean())
+            return store.getInt(refs + index * 4);
+        }
+
+        private String getString(int index) throws IOException
+        {
+            if (index == NO_STRING)
             {
-                String connectLocation = in.readUTF();
-                atomosRuntime.debug("Found connected location %s", connectLocation);
-                if (Constants.SYSTEM_BUNDLE_LOCATION.equals(connectLocation))
-                {
-                    // don't do anything for the system bundle, it is already connected
-                    continue;
-                }
-                AtomosContentBase atomosContent = atomosRuntime.getByAtomosLocation(
-                    atomosLocation);
-                if (atomosContent != null)
-                {
-                    atomosRuntime.connectAtomosContent(connectLocation, atomosContent);
-                }
-                else
-                {
-                    atomosRuntime.debug("Unable to find atomos content for location %s",
-                        atomosLocation);
-                }
+                return null;
             }
-
+            check(index >= 0 && index < strings.length, "invalid string index");
+            String result = strings[index];
+            if (result == null)
+            {
+                int start = store.getInt(stringOffsets + index * 4);
+                int end = store.getInt(stringOffsets + (index + 1) * 4);
+                check(start >= 0 && start <= end && end <= stringDataSize,
+                    "invalid string offset");
+                result = new String(store.array(), stringData + start, end - start,
+                    StandardCharsets.UTF_8);
+                strings[index] = result;
+            }
+            return result;
         }
     }
 
-    private void writeLayer(AtomosLayerBase layer, DataOutputStream out)
-        throws IOException
+    /**
+     * Collects the tables of the current format so they can be written
+     * with a single write.
+     */
+    private static final class StoreWriter
     {
-        out.writeUTF(layer.getName());
-        out.writeLong(layer.getId());
-        out.writeUTF(layer.getLoaderType().toString());
-        List<Path> paths = layer.getPaths();
-        out.writeInt(paths.size());
-        for (Path path : paths)
+        private final long nextLayerId;
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final List<byte[]> strings = new ArrayList<>();
+        private int stringDataSize = 0;
+        private final List<long[]> layers = new ArrayList<>();
+        private final List<Integer> refs = new ArrayList<>();
+        private final List<int[]> contents = new ArrayList<>();
+
+        StoreWriter(long nextLayerId, List<AtomosLayerBase> writeOrder)
+        {
+            this.nextLayerId = nextLayerId;
+            Map<AtomosLayer, Integer> layerIndexes = new IdentityHashMap<>();
+            for (AtomosLayerBase layer : writeOrder)
+            {
+                layerIndexes.put(layer, layerIndexes.size());
+                addLayer(layer, layerIndexes);
+            }
+        }
+
+        private void addLayer(AtomosLayerBase layer,
+            Map<AtomosLayer, Integer> layerIndexes)
         {
-            out.writeUTF(path.toUri().toString());
+            int pathsStart = refs.size();
+            List<Path> paths = layer.getPaths();
+            for (Path path : paths)
+            {
+                refs.add(addString(path.toUri().toString()));
+            }
+            int parentsStart = refs.size();
+            List<AtomosLayer> parents = layer.getParents();
+            for (AtomosLayer parent : parents)
+            {
+                refs.add(layerIndexes.get(parent));
+            }
+            int contentsStart = contents.size();
+            Set<AtomosContent> layerContents = layer.getAtomosContents();
+            for (AtomosContent content : layerContents)
+            {
+                contents.add(new int[] { addString(content.getAtomosLocation()),
+                        addString(content.getConnectLocation()) });
+            }
+            layers.add(new long[] { layer.getId(), addString(layer.getName()),
+                    addString(layer.getLoaderType().toString()), pathsStart,
+                    paths.size(), parentsStart, parents.size(), contentsStart,
+                    layerContents.size() });
         }
-        List<AtomosLayer> parents = layer.getParents();
-        out.writeInt(parents.size());
-        for (AtomosLayer parent : parents)
+
+        private int addString(String s)
         {
-            out.writeLong(((AtomosLayerBase) parent).getId());
+            if (s == null)
+            {
+                return NO_STRING;
+            }
+            return stringIndexes.computeIfAbsent(s, (k) -> {
+                byte[] bytes = k.getBytes(StandardCharsets.UTF_8);
+                strings.add(bytes);
+                stringDataSize += bytes.length;
+                return strings.size() - 1;
+            });
         }
 
-        Set<AtomosContent> contents = layer.getAtomosContents();
-        out.writeInt(contents.size());
-        for (AtomosContent content : contents)
+        byte[] toByteArray()
         {
-            String atomosLocation = content.getAtomosLocation();
-            out.writeUTF(atomosLocation);
-            String connectLocation = content.getConnectLocation();
-            out.writeBoolean(connectLocation != null);
-            if (connectLocation != null)
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE
+                + (strings.size() + 1) * 4 + stringDataSize
+                + layers.size() * LAYER_RECORD_SIZE + refs.size() * 4
+                + contents.size() * CONTENT_RECORD_SIZE);
+            out.putInt(VERSION);
+            out.putLong(nextLayerId);
+            out.putInt(strings.size());
+            out.putInt(layers.size());
+            out.putInt(refs.size());
+            out.putInt(contents.size());
+
+            int offset = 0;
+            for (byte[] string : strings)
+            {
+                out.putInt(offset);
+                offset += string.length;
+            }
+            out.putInt(offset);
+            for (byte[] string : strings)
+            {
+                out.put(string);
+            }
+
+            for (long[] layer : layers)
             {
-                out.writeUTF(connectLocation);
+                out.putLong(layer[0]);
+                for (int i = 1; i < layer.length; i++)
+                {
+                    out.putInt((int) layer[i]);
+                }
             }
+            for (int ref : refs)
+            {
+                out.putInt(ref);
+            }
+            for (int[] content : contents)
+            {
+                out.putInt(content[0]);
+                out.putInt(content[1]);
+            }
+            return out.array();
         }
     }
-
 }
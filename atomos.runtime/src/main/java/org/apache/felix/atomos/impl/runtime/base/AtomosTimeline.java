@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory log of the timed phases of an Atomos runtime, such as runtime
+ * selection, layer creation, content discovery, loading the persistent store,
+ * bundle installs and starts and resolver hook calls.  Each phase is also
+ * reported as a JFR event when JFR is available.
+ */
+public final class AtomosTimeline
+{
+    private final static int MAX_EVENTS = 10000;
+    private final static boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private static boolean isJfrAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (ClassNotFoundException | LinkageError e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * A completed phase of the timeline.
+     */
+    public static final class Event
+    {
+        private final String category;
+        private final String name;
+        private final String thread;
+        private final long start;
+        private final long duration;
+
+        Event(String category, String name, String thread, long start, long duration)
+        {
+            this.category = category;
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        public String getCategory()
+        {
+            return category;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getThread()
+        {
+            return thread;
+        }
+
+        /**
+         * Returns the start of the phase in nanoseconds relative to the creation of the timeline.
+         * @return the start in nanoseconds
+         */
+        public long getStart()
+        {
+            return start;
+        }
+
+        /**
+         * Returns the duration of the phase in nanoseconds.
+         * @return the duration in nanoseconds
+         */
+        public long getDuration()
+        {
+            return duration;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%+10.3f ms %10.3f ms  [%s] %s (%s)", start / 1e6,
+                duration / 1e6, category, name, thread);
+        }
+    }
+
+    /**
+     * A phase that is in progress.  Closing the span records it.
+     */
+    public static final class Span implements AutoCloseable
+    {
+        private final AtomosTimeline timeline;
+        private final String category;
+        private final String name;
+        private final long start = System.nanoTime();
+        private volatile String detail;
+        // typed as Object so the JFR event class is only loaded when JFR is available
+        private final Object jfrEvent;
+
+        Span(AtomosTimeline timeline, String category, String name)
+        {
+            this.timeline = timeline;
+            this.category = category;
+            this.name = name;
+            this.jfrEvent = JFR_AVAILABLE ? AtomosTimelineEvent.begin(category, name)
+                : null;
+        }
+
+        /**
+         * Sets a detail, such as a count, that is shown with the name of the phase.
+         * @param detail the detail
+         */
+        public void setDetail(String detail)
+        {
+            this.detail = detail;
+        }
+
+        /**
+         * Ends this span and records it in the specified timeline.
+         * @param target the timeline to record to, may be {@code null}
+         */
+        public void end(AtomosTimeline target)
+        {
+            long end = System.nanoTime();
+            if (jfrEvent != null)
+            {
+                AtomosTimelineEvent.commit(jfrEvent);
+            }
+            if (target != null)
+            {
+                String current = detail;
+                target.add(new Event(category,
+                    current == null ? name : name + ": " + current,
+                    Thread.currentThread().getName(), start - target.origin,
+                    end - start));
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            end(timeline);
+        }
+    }
+
+    /**
+     * Starts a span that is not yet bound to a timeline.
+     * @param category the category of the phase
+     * @param name the name of the phase
+     * @return the started span which must be ended with {@link Span#end(AtomosTimeline)}
+     */
+    public static Span start(String category, String name)
+    {
+        return new Span(null, category, name);
+    }
+
+    private final long origin = System.nanoTime();
+    private final List<Event> events = new ArrayList<>();
+    private int dropped = 0;
+
+    /**
+     * Starts a span that is recorded in this timeline when closed.
+     * @param category the category of the phase
+     * @param name the name of the phase
+     * @return the started span
+     */
+    public Span begin(String category, String name)
+    {
+        return new Span(this, category, name);
+    }
+
+    private synchronized void add(Event event)
+    {
+        if (events.size() < MAX_EVENTS)
+        {
+            events.add(event);
+        }
+        else
+        {
+            dropped++;
+        }
+    }
+
+    /**
+     * Returns the recorded events ordered by their start.
+     * @return the recorded events
+     */
+    public synchronized List<Event> getEvents()
+    {
+        List<Event> result = new ArrayList<>(events);
+        Collections.sort(result, (e1, e2) -> Long.compare(e1.start, e2.start));
+        return result;
+    }
+
+    /**
+     * Returns the number of events that were not recorded because the log is full.
+     * @return the number of dropped events
+     */
+    public synchronized int getDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the time since the timeline was created.
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsed()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+}
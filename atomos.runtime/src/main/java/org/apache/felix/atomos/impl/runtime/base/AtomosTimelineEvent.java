@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event for a phase of the {@link AtomosTimeline}.  This class must
+ * only be used when JFR is available.
+ */
+@Name("org.apache.felix.atomos.Timeline")
+@Label("Atomos Timeline")
+@Category("Atomos")
+class AtomosTimelineEvent extends Event
+{
+    // looked up once; isEnabled follows recordings as they start and stop
+    private static final EventType TYPE = EventType.getEventType(
+        AtomosTimelineEvent.class);
+
+    @Label("Category")
+    String category;
+
+    @Label("Name")
+    String name;
+
+    /**
+     * Begins an event for a phase.
+     * @return the event or {@code null} if no recording has the event enabled
+     */
+    static Object begin(String category, String name)
+    {
+        if (!TYPE.isEnabled())
+        {
+            return null;
+        }
+        AtomosTimelineEvent event = new AtomosTimelineEvent();
+        event.category = category;
+        event.name = name;
+        event.begin();
+        return event;
+    }
+
+    static void commit(Object event)
+    {
+        ((AtomosTimelineEvent) event).commit();
+    }
+}
@@ -17,11 +17,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import org.osgi.framework.connect.ConnectContent;
 
@@ -31,13 +41,21 @@ public class FileConnectContent implements ConnectContent
     {
         private final File entry;
         private final String name;
+        // read with a single call, null if the file could not be read
+        private final BasicFileAttributes attrs;
 
         public FileConnectEntry(File entry, String name)
+        {
+            this(entry, name, readAttributes(entry.toPath()));
+        }
+
+        FileConnectEntry(File entry, String name, BasicFileAttributes attrs)
         {
             this.entry = entry;
+            this.attrs = attrs;
             boolean endsInSlash = name.length() > 0
                 && name.charAt(name.length() - 1) == '/';
-            if (entry.isDirectory())
+            if (attrs != null && attrs.isDirectory())
             {
                 if (!endsInSlash)
                     name += '/';
@@ -50,7 +68,7 @@ public class FileConnectContent implements ConnectContent
         @Override
         public long getContentLength()
         {
-            return entry.length();
+            return attrs == null ? 0 : attrs.size();
         }
 
         @Override
@@ -62,7 +80,7 @@ public class FileConnectContent implements ConnectContent
         @Override
         public long getLastModified()
         {
-            return entry.lastModified();
+            return attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
         }
 
         @Override
@@ -73,13 +91,50 @@ public class FileConnectContent implements ConnectContent
 
     }
 
+    /**
+     * The entries found by a single walk of the root directory.  Directory
+     * names end with a slash.
+     */
+    private static final class EntryIndex
+    {
+        final List<String> names = new ArrayList<>();
+        final Map<String, FileConnectEntry> entries = new HashMap<>();
+        final List<WatchKey> keys = new ArrayList<>();
+        // only a watched index is kept and used for lookups
+        boolean watched;
+    }
+
     private static final String POINTER_UPPER_DIRECTORY = "..";
 
     final File root;
+    // the normalized root used to check that a path is within the content
+    private final Path rootPath;
+    private volatile EntryIndex index;
+    // cleared when the content cannot be watched; entries are then looked up directly
+    private volatile boolean watching;
 
     public FileConnectContent(File root)
+    {
+        this(root, true);
+    }
+
+    FileConnectContent(File root, boolean watching)
     {
         this.root = root;
+        this.rootPath = root.toPath().toAbsolutePath().normalize();
+        this.watching = watching;
+    }
+
+    static BasicFileAttributes readAttributes(Path path)
+    {
+        try
+        {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
     }
 
     @Override
@@ -91,7 +146,8 @@ public class FileConnectContent implements ConnectContent
     @Override
     public void close() throws IOException
     {
-        // do nothing
+        // release the watch keys; the index is built again if the content is used
+        invalidate();
     }
 
     @Override
@@ -103,52 +159,168 @@ public class FileConnectContent implements ConnectContent
     @Override
     public Iterable<String> getEntries() throws IOException
     {
-        Path rootPath = root.toPath();
-        return Files.find(rootPath, Integer.MAX_VALUE, (p, a) -> true).map((p) -> {
-            Path relative = rootPath.relativize(p);
-            StringBuilder builder = new StringBuilder();
-            for (Path path : relative)
-            {
-                builder.append(path.getFileName());
-                if (Files.isDirectory(path))
-                {
-                    builder.append('/');
-                }
-            }
-            return builder.toString();
-        }).collect(Collectors.toList());
+        return Collections.unmodifiableList(getIndex().names);
     }
 
     @Override
     public Optional<ConnectEntry> getEntry(final String name)
     {
-        return getFile(name).map((f) -> new FileConnectEntry(f, name));
+        if (watching && name.indexOf(POINTER_UPPER_DIRECTORY) < 0 && !name.isEmpty()
+            && !"/".equals(name))
+        {
+            EntryIndex current;
+            try
+            {
+                current = getIndex();
+            }
+            catch (IOException e)
+            {
+                current = null;
+            }
+            if (current != null && current.watched)
+            {
+                return Optional.ofNullable(lookup(current, name));
+            }
+        }
+        return Optional.ofNullable(getFileEntry(name));
     }
 
-    private Optional<File> getFile(String path)
+    private ConnectEntry lookup(EntryIndex current, String name)
     {
-        File file = new File(root, path);
-        if (!file.exists())
+        if (name.charAt(0) == '/')
         {
-            return Optional.empty();
+            name = name.substring(1);
         }
-        final boolean checkInFile = path != null
-            && path.indexOf(POINTER_UPPER_DIRECTORY) >= 0;
-        if (checkInFile)
+        FileConnectEntry result = current.entries.get(name);
+        if (result == null)
         {
-            try
+            // a directory may be asked for without the slash and a file with one
+            result = name.charAt(name.length() - 1) == '/'
+                ? current.entries.get(name.substring(0, name.length() - 1))
+                : current.entries.get(name + '/');
+        }
+        return result;
+    }
+
+    private synchronized EntryIndex getIndex() throws IOException
+    {
+        EntryIndex current = index;
+        if (current != null)
+        {
+            return current;
+        }
+        EntryIndex result = new EntryIndex();
+        FileContentWatcher watcher = watching ? FileContentWatcher.getWatcher() : null;
+        result.watched = watcher != null;
+        // linked directories are walked; a link cycle is reported as a failed visit
+        Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+            Integer.MAX_VALUE, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException
             {
-                if (!file.getCanonicalPath().startsWith(root.getCanonicalPath()))
+                if (result.watched)
+                {
+                    // register before listing so no change is missed
+                    try
+                    {
+                        result.keys.add(watcher.register(dir, FileConnectContent.this));
+                    }
+                    catch (IOException e)
+                    {
+                        result.watched = false;
+                    }
+                }
+                if (!dir.equals(rootPath))
                 {
-                    return Optional.empty();
+                    add(dir, getName(dir) + '/', attrs);
                 }
+                return FileVisitResult.CONTINUE;
             }
-            catch (IOException e)
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                add(file, getName(file), attrs);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+
+            private String getName(Path path)
+            {
+                return rootPath.relativize(path).toString().replace(File.separatorChar,
+                    '/');
+            }
+
+            private void add(Path path, String name, BasicFileAttributes attrs)
+            {
+                result.names.add(name);
+                result.entries.put(name, new FileConnectEntry(path.toFile(), name,
+                    attrs));
+            }
+        });
+        if (result.watched)
+        {
+            index = result;
+        }
+        else
+        {
+            // an unwatched index could go stale; do not build one for each lookup
+            watching = false;
+            if (watcher != null)
+            {
+                watcher.cancel(result.keys);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards the entry index after a change to the content directory.
+     */
+    void invalidate()
+    {
+        EntryIndex current;
+        synchronized (this)
+        {
+            current = index;
+            index = null;
+        }
+        if (current != null && !current.keys.isEmpty())
+        {
+            FileContentWatcher.getWatcher().cancel(current.keys);
+        }
+    }
+
+    private FileConnectEntry getFileEntry(String name)
+    {
+        Path path;
+        try
+        {
+            path = rootPath.resolve(
+                name.length() > 0 && name.charAt(0) == '/' ? name.substring(1) : name);
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+        if (name.indexOf(POINTER_UPPER_DIRECTORY) >= 0)
+        {
+            path = path.normalize();
+            if (!path.startsWith(rootPath))
             {
-                return Optional.empty();
+                return null;
             }
         }
-        return Optional.of(file);
+        // a single call checks the file exists and reads all the attributes of the entry
+        BasicFileAttributes attrs = readAttributes(path);
+        return attrs == null ? null : new FileConnectEntry(path.toFile(), name, attrs);
     }
 
     @Override
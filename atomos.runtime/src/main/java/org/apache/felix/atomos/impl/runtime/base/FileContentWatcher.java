@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the directories of {@link FileConnectContent} entry indexes and
+ * invalidates the index of a content when one of its directories changes.  A
+ * single daemon thread services the watch keys of all contents.  The keys of
+ * a content are cancelled when its index is discarded or the content is closed.
+ */
+final class FileContentWatcher implements Runnable
+{
+    private static FileContentWatcher watcher;
+    private static boolean unavailable = false;
+
+    private final WatchService service;
+    private final Map<WatchKey, FileConnectContent> contents = new ConcurrentHashMap<>();
+
+    private FileContentWatcher(WatchService service)
+    {
+        this.service = service;
+    }
+
+    /**
+     * Returns the watcher for the default file system.
+     * @return the watcher or {@code null} if file changes cannot be watched
+     */
+    static synchronized FileContentWatcher getWatcher()
+    {
+        if (watcher == null && !unavailable)
+        {
+            try
+            {
+                watcher = new FileContentWatcher(
+                    FileSystems.getDefault().newWatchService());
+                Thread thread = new Thread(watcher, "Atomos File Content Watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException | UnsupportedOperationException e)
+            {
+                unavailable = true;
+            }
+        }
+        return watcher;
+    }
+
+    WatchKey register(Path dir, FileConnectContent content) throws IOException
+    {
+        WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        contents.put(key, content);
+        return key;
+    }
+
+    void cancel(Collection<WatchKey> keys)
+    {
+        for (WatchKey key : keys)
+        {
+            key.cancel();
+            contents.remove(key);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                WatchKey key = service.take();
+                key.pollEvents();
+                FileConnectContent content = contents.get(key);
+                if (content != null)
+                {
+                    content.invalidate();
+                }
+                key.reset();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            // stop watching
+        }
+    }
+}
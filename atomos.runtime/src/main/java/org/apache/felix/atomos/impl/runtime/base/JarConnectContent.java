@@ -13,10 +13,9 @@
  */
 package org.apache.felix.atomos.impl.runtime.base;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.zip.ZipEntry;
@@ -26,13 +25,45 @@ import org.osgi.framework.connect.ConnectContent;
 
 public class JarConnectContent implements ConnectContent
 {
-    final ZipFile zipFile;
+    // the JAR file to open when the content is first used; null if already open
+    private final File file;
+    private final ZipFile zipFile;
+    private volatile JarEntryIndex index;
 
     public JarConnectContent(ZipFile zipFile)
     {
+        this.file = null;
         this.zipFile = zipFile;
     }
 
+    /**
+     * Creates the content of a JAR file that is only opened when it is used.
+     * @param file the JAR file
+     */
+    public JarConnectContent(File file)
+    {
+        this.file = file;
+        this.zipFile = null;
+    }
+
+    private JarEntryIndex getIndex() throws IOException
+    {
+        JarEntryIndex current = index;
+        if (current == null)
+        {
+            synchronized (this)
+            {
+                current = index;
+                if (current == null)
+                {
+                    index = current = new JarEntryIndex(
+                        zipFile == null ? new ZipFile(file) : zipFile);
+                }
+            }
+        }
+        return current;
+    }
+
     @Override
     public void open() throws IOException
     {
@@ -54,28 +85,22 @@ public class JarConnectContent implements ConnectContent
     @Override
     public Iterable<String> getEntries() throws IOException
     {
-        return () -> new Iterator<String>()
-        {
-            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-
-            @Override
-            public boolean hasNext()
-            {
-                return entries.hasMoreElements();
-            }
-
-            @Override
-            public String next()
-            {
-                return entries.nextElement().getName();
-            }
-        };
+        return getIndex().getNames();
     }
 
     @Override
     public Optional<ConnectEntry> getEntry(String name)
     {
-        ZipEntry entry = zipFile.getEntry(name);
+        ZipEntry entry;
+        try
+        {
+            entry = getIndex().getEntry(name);
+        }
+        catch (IOException e)
+        {
+            // the JAR file cannot be opened
+            return Optional.empty();
+        }
         if (entry != null)
         {
             return Optional.of(new JarConnectEntry(entry));
@@ -107,7 +132,7 @@ public class JarConnectContent implements ConnectContent
         @Override
         public InputStream getInputStream() throws IOException
         {
-            return zipFile.getInputStream(entry);
+            return getIndex().getInputStream(entry);
         }
 
         @Override
@@ -0,0 +1,886 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * A name to entry index of a JAR with the directory entries synthesized
+ * for JARs that do not include them.  The content is read from the
+ * {@link ZipFile} unless mapping is enabled with the
+ * {@link #ATOMOS_JAR_MAP_PROP atomos.jar.map} system property.  When the JAR
+ * is mapped the content of a stored entry is served as a slice of the mapped
+ * JAR and a deflated entry is inflated from the mapped JAR with a pooled
+ * inflater.
+ * <p>
+ * Mapping avoids copying the content of stored entries but the mapping is
+ * only released when the buffer is garbage collected.  A mapped JAR cannot be
+ * deleted or replaced on Windows while it is mapped, and a JAR that is
+ * truncated in place fails the reads of its entries with an IOException.
+ * Only enable mapping for JARs that do not change while they are in use.
+ * <p>
+ * A JAR nested in another JAR is indexed in place with
+ * {@link #getNested(String)} on the index of the outer JAR.  The entries of a
+ * stored nested JAR are read with positional reads of the outer JAR file
+ * unless the outer JAR is mapped.
+ */
+public final class JarEntryIndex
+{
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_POOLED_INFLATERS = 16;
+    /**
+     * System property that enables reading JAR content from a memory-mapped JAR.
+     */
+    public static final String ATOMOS_JAR_MAP_PROP = "atomos.jar.map";
+    private static final boolean MAP_JARS = Boolean.getBoolean(ATOMOS_JAR_MAP_PROP);
+    private static final Deque<Inflater> inflaters = new ArrayDeque<>();
+
+    // null for a nested JAR
+    private final ZipFile zipFile;
+    private final Map<String, ZipEntry> entries;
+    private final List<String> names;
+    // the mapped JAR or the content of a nested JAR; null if read from the zip file
+    private final ByteBuffer mapped;
+    // the local header offset of each entry in the mapped JAR or the file
+    private final Map<String, Integer> localOffsets;
+    // the file that contains the JAR, the start of the JAR in the file and its
+    // size; the file is null for a nested JAR that is not read from a file
+    private final File file;
+    private final long base;
+    private final long size;
+    // opened when the file is first read; guarded by this
+    private FileChannel channel;
+    // the local header offsets of an unmapped zip file, read when a JAR nested
+    // in it is first indexed; guarded by this
+    private Map<String, Integer> fileOffsets;
+
+    public JarEntryIndex(ZipFile zipFile)
+    {
+        this(zipFile, MAP_JARS);
+    }
+
+    JarEntryIndex(ZipFile zipFile, boolean map)
+    {
+        this.zipFile = zipFile;
+        Map<String, ZipEntry> result = new LinkedHashMap<>();
+        for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();)
+        {
+            ZipEntry entry = e.nextElement();
+            result.putIfAbsent(entry.getName(), entry);
+        }
+        entries = addDirectories(result);
+        names = Collections.unmodifiableList(new ArrayList<>(result.keySet()));
+
+        ByteBuffer tmpMapped = null;
+        Map<String, Integer> tmpOffsets = null;
+        try
+        {
+            tmpMapped = map ? map(zipFile.getName()) : null;
+            if (tmpMapped != null)
+            {
+                tmpOffsets = new HashMap<>();
+                if (!readCentralDirectory(tmpMapped, tmpOffsets, null))
+                {
+                    tmpOffsets = null;
+                }
+            }
+        }
+        catch (IOException | RuntimeException | InternalError e)
+        {
+            // fall back to reading from the zip file
+            tmpOffsets = null;
+        }
+        mapped = tmpOffsets == null ? null : tmpMapped;
+        localOffsets = tmpOffsets;
+        file = new File(zipFile.getName());
+        base = 0;
+        size = -1;
+    }
+
+    private JarEntryIndex(ByteBuffer jar, Map<String, ZipEntry> entries,
+        Map<String, Integer> localOffsets)
+    {
+        this(jar, null, 0, jar.limit(), entries, localOffsets);
+    }
+
+    private JarEntryIndex(File file, long base, long size, Map<String, ZipEntry> entries,
+        Map<String, Integer> localOffsets)
+    {
+        this(null, file, base, size, entries, localOffsets);
+    }
+
+    private JarEntryIndex(ByteBuffer jar, File file, long base, long size,
+        Map<String, ZipEntry> entries, Map<String, Integer> localOffsets)
+    {
+        this.zipFile = null;
+        this.entries = addDirectories(entries);
+        this.names = Collections.unmodifiableList(new ArrayList<>(entries.keySet()));
+        this.mapped = jar;
+        this.localOffsets = localOffsets;
+        this.file = file;
+        this.base = base;
+        this.size = size;
+    }
+
+    /**
+     * Indexes a JAR that is an entry of another JAR without extracting it.
+     * @param outer the outer JAR file
+     * @param entryName the name of the nested JAR entry in the outer JAR
+     * @return the index of the nested JAR
+     * @throws IOException if the nested JAR cannot be read
+     * @see #getNested(String)
+     */
+    public static JarEntryIndex nested(File outer, String entryName)
+        throws IOException
+    {
+        return nested(outer, entryName, MAP_JARS);
+    }
+
+    static JarEntryIndex nested(File outer, String entryName, boolean map)
+        throws IOException
+    {
+        JarEntryIndex outerIndex = new JarEntryIndex(new ZipFile(outer), map);
+        try
+        {
+            return outerIndex.getNested(entryName);
+        }
+        finally
+        {
+            outerIndex.close();
+        }
+    }
+
+    /**
+     * Indexes a JAR that is an entry of this JAR without extracting it.  When
+     * this JAR is mapped the central directory of a stored nested JAR is read
+     * through offsets into the mapped JAR.  Otherwise a stored nested JAR is
+     * read with positional reads of the file that contains it.  Only a deflated
+     * nested JAR is inflated into memory once.  The nested index does not use
+     * the zip file of this index so it may be closed afterwards.
+     * @param entryName the name of the nested JAR entry in this JAR
+     * @return the index of the nested JAR
+     * @throws IOException if the nested JAR cannot be read
+     */
+    public JarEntryIndex getNested(String entryName) throws IOException
+    {
+        ZipEntry entry = entries.get(entryName);
+        if (entry == null || entry.isDirectory())
+        {
+            throw new ZipException("No entry " + entryName + " in JAR: " + getName());
+        }
+        if (entry.getSize() > Integer.MAX_VALUE)
+        {
+            throw new ZipException("Unsupported nested JAR: " + entryName);
+        }
+        try
+        {
+            Map<String, Integer> offsets = new HashMap<>();
+            Map<String, ZipEntry> result = new LinkedHashMap<>();
+            ByteBuffer jar = null;
+            long fileStart = -1;
+            if (entry.getMethod() == ZipEntry.STORED)
+            {
+                if (mapped != null)
+                {
+                    Integer localOffset = localOffsets.get(entryName);
+                    if (localOffset != null && hasLocalHeader(localOffset))
+                    {
+                        jar = slice(getDataStart(entry), entry.getSize());
+                    }
+                }
+                else if (file != null)
+                {
+                    fileStart = getFileDataStart(entry);
+                }
+            }
+            if (fileStart >= 0)
+            {
+                // only the central directory is read; entries are read when used
+                if (!readCentralDirectory(getChannel(), base + fileStart,
+                    entry.getSize(), offsets, result))
+                {
+                    throw new ZipException("Unsupported nested JAR: " + entryName);
+                }
+                return new JarEntryIndex(file, base + fileStart, entry.getSize(), result,
+                    offsets);
+            }
+            if (jar == null)
+            {
+                // a deflated nested JAR cannot be read in place
+                try (InputStream in = getInputStream(entry))
+                {
+                    jar = readFully(in, entry.getSize());
+                }
+            }
+            jar.order(ByteOrder.LITTLE_ENDIAN);
+            if (!readCentralDirectory(jar, offsets, result))
+            {
+                throw new ZipException("Unsupported nested JAR: " + entryName);
+            }
+            return new JarEntryIndex(jar, result, offsets);
+        }
+        catch (RuntimeException | InternalError e)
+        {
+            // a damaged central directory reads past the end of the buffer
+            ZipException ze = new ZipException(
+                "Cannot read nested JAR " + entryName + " in JAR: " + getName());
+            ze.initCause(e);
+            throw ze;
+        }
+    }
+
+    private String getName()
+    {
+        return zipFile == null ? "<nested>" : zipFile.getName();
+    }
+
+    private static ByteBuffer readFully(InputStream in, long size) throws IOException
+    {
+        ByteBuffer jar = ByteBuffer.allocate((int) size);
+        byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read > 0; read = in.read(buffer))
+        {
+            jar.put(buffer, 0, read);
+        }
+        jar.flip();
+        return jar;
+    }
+
+    private static Map<String, ZipEntry> addDirectories(Map<String, ZipEntry> result)
+    {
+        for (ZipEntry entry : new ArrayList<>(result.values()))
+        {
+            addDirectories(result, entry);
+        }
+        return result;
+    }
+
+    private static void addDirectories(Map<String, ZipEntry> result, ZipEntry entry)
+    {
+        String name = entry.getName();
+        int slash = name.indexOf('/');
+        while (slash > 0 && slash < name.length() - 1)
+        {
+            String dir = name.substring(0, slash + 1);
+            if (!result.containsKey(dir))
+            {
+                ZipEntry dirEntry = new ZipEntry(dir);
+                dirEntry.setSize(0);
+                dirEntry.setTime(entry.getTime());
+                result.put(dir, dirEntry);
+            }
+            slash = name.indexOf('/', slash + 1);
+        }
+    }
+
+    private static ByteBuffer map(String path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+            StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                return null;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(
+                ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Reads the local header offsets, and optionally the entries, from the
+     * central directory.
+     * @return false if the JAR is not supported, for example a zip64 JAR, or
+     *         its central directory is damaged
+     */
+    private static boolean readCentralDirectory(ByteBuffer jar,
+        Map<String, Integer> offsets, Map<String, ZipEntry> entries)
+    {
+        int eocd = findEndOfCentralDirectory(jar);
+        if (eocd < 0)
+        {
+            return false;
+        }
+        int total = jar.getShort(eocd + 10) & 0xFFFF;
+        long cenOffset = jar.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (total == 0xFFFF || cenOffset > eocd)
+        {
+            return false;
+        }
+        return readEntries(jar, (int) cenOffset, eocd, cenOffset, total, offsets,
+            entries);
+    }
+
+    /**
+     * Reads the central directory of a JAR that starts at the specified position
+     * of a file with positional reads.  Only the end of the JAR and the central
+     * directory are read.
+     * @see #readCentralDirectory(ByteBuffer, Map, Map)
+     */
+    private static boolean readCentralDirectory(FileChannel channel, long base,
+        long size, Map<String, Integer> offsets, Map<String, ZipEntry> entries)
+        throws IOException
+    {
+        int tailSize = (int) Math.min(size, EOCD_SIZE + 0xFFFF);
+        long tailStart = size - tailSize;
+        ByteBuffer tail = read(channel, base + tailStart, tailSize);
+        int eocd = findEndOfCentralDirectory(tail);
+        if (eocd < 0)
+        {
+            return false;
+        }
+        int total = tail.getShort(eocd + 10) & 0xFFFF;
+        long cenOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        long cenEnd = tailStart + eocd;
+        if (total == 0xFFFF || cenOffset > cenEnd)
+        {
+            return false;
+        }
+        ByteBuffer cen = read(channel, base + cenOffset, (int) (cenEnd - cenOffset));
+        return readEntries(cen, 0, cen.limit(), cenOffset, total, offsets, entries);
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer)
+    {
+        int stop = Math.max(0, buffer.limit() - EOCD_SIZE - 0xFFFF);
+        for (int i = buffer.limit() - EOCD_SIZE; i >= stop; i--)
+        {
+            if (buffer.getInt(i) == EOCD_SIG)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the central directory records between the start and end positions
+     * of the buffer.  The local headers precede the central directory, which
+     * starts at the specified offset of the JAR.
+     */
+    private static boolean readEntries(ByteBuffer buffer, int start, int end,
+        long cenOffset, int total, Map<String, Integer> offsets,
+        Map<String, ZipEntry> entries)
+    {
+        int cen = start;
+        for (int i = 0; i < total; i++)
+        {
+            // every offset is checked so a damaged directory is never read past its end
+            if (cen + CEN_SIZE > end || buffer.getInt(cen) != CEN_SIG)
+            {
+                return false;
+            }
+            int nameLength = buffer.getShort(cen + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(cen + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(cen + 32) & 0xFFFF;
+            long localOffset = buffer.getInt(cen + 42) & 0xFFFFFFFFL;
+            if (cen + CEN_SIZE + nameLength > end || localOffset + LOC_SIZE > cenOffset)
+            {
+                return false;
+            }
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(cen + CEN_SIZE);
+            nameBuffer.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (offsets.putIfAbsent(name, (int) localOffset) == null && entries != null)
+            {
+                ZipEntry entry = new ZipEntry(name);
+                int method = buffer.getShort(cen + 10) & 0xFFFF;
+                if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED)
+                {
+                    // other methods are left unset and cannot be read
+                    entry.setMethod(method);
+                }
+                entry.setTime(dosToJavaTime(buffer.getInt(cen + 12)));
+                entry.setCrc(buffer.getInt(cen + 16) & 0xFFFFFFFFL);
+                entry.setCompressedSize(buffer.getInt(cen + 20) & 0xFFFFFFFFL);
+                entry.setSize(buffer.getInt(cen + 24) & 0xFFFFFFFFL);
+                entries.put(name, entry);
+            }
+            cen += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+        throws IOException
+    {
+        ByteBuffer result = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (result.hasRemaining())
+        {
+            if (channel.read(result, position + result.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of JAR");
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    private static long dosToJavaTime(int dosTime)
+    {
+        try
+        {
+            LocalDateTime time = LocalDateTime.of(((dosTime >> 25) & 0x7f) + 1980,
+                (dosTime >> 21) & 0x0f, (dosTime >> 16) & 0x1f, (dosTime >> 11) & 0x1f,
+                (dosTime >> 5) & 0x3f, (dosTime << 1) & 0x3e);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        catch (DateTimeException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Closes the zip file of this index and the file used for positional reads.
+     * Only used by the owner of the zip file.  A nested JAR opens its file again
+     * when it is next read.
+     * @throws IOException if the zip file cannot be closed
+     */
+    public void close() throws IOException
+    {
+        FileChannel current;
+        synchronized (this)
+        {
+            current = channel;
+            channel = null;
+        }
+        try
+        {
+            if (current != null)
+            {
+                current.close();
+            }
+        }
+        finally
+        {
+            if (zipFile != null)
+            {
+                zipFile.close();
+            }
+        }
+    }
+
+    private synchronized FileChannel getChannel() throws IOException
+    {
+        // a channel closed by an interrupted read is opened again
+        if (channel == null || !channel.isOpen())
+        {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the local header offsets of the entries read with positional reads.
+     */
+    private synchronized Map<String, Integer> getFileOffsets() throws IOException
+    {
+        if (zipFile == null)
+        {
+            return localOffsets;
+        }
+        if (fileOffsets == null)
+        {
+            Map<String, Integer> result = new HashMap<>();
+            long fileSize = getChannel().size();
+            if (fileSize > Integer.MAX_VALUE
+                || !readCentralDirectory(getChannel(), 0, fileSize, result, null))
+            {
+                result = Collections.emptyMap();
+            }
+            fileOffsets = result;
+        }
+        return fileOffsets;
+    }
+
+    /**
+     * Returns the offset of the data of the entry in this JAR read with
+     * positional reads, or -1 if the entry cannot be read in place.
+     */
+    private long getFileDataStart(ZipEntry entry) throws IOException
+    {
+        Integer localOffset = getFileOffsets().get(entry.getName());
+        if (localOffset == null)
+        {
+            return -1;
+        }
+        FileChannel current = getChannel();
+        long limit = zipFile == null ? size : current.size();
+        if (localOffset + (long) LOC_SIZE > limit)
+        {
+            return -1;
+        }
+        ByteBuffer header = read(current, base + localOffset, LOC_SIZE);
+        if (header.getInt(0) != LOC_SIG)
+        {
+            return -1;
+        }
+        long start = localOffset + LOC_SIZE + (header.getShort(26) & 0xFFFF)
+            + (header.getShort(28) & 0xFFFF);
+        long length = entry.getMethod() == ZipEntry.STORED ? entry.getSize()
+            : entry.getCompressedSize();
+        return length < 0 || start + length > limit ? -1 : start;
+    }
+
+    public List<String> getNames()
+    {
+        return names;
+    }
+
+    public ZipEntry getEntry(String name)
+    {
+        return entries.get(name);
+    }
+
+    public InputStream getInputStream(ZipEntry entry) throws IOException
+    {
+        Integer localOffset = localOffsets == null ? null
+            : localOffsets.get(entry.getName());
+        if (localOffset != null && mapped == null)
+        {
+            return getFileInputStream(entry);
+        }
+        if (localOffset == null || !hasLocalHeader(localOffset))
+        {
+            if (entry.isDirectory())
+            {
+                // a directory, which may be synthesized, has no content
+                return new ByteBufferInputStream(ByteBuffer.allocate(0));
+            }
+            return getZipFileInputStream(entry);
+        }
+        int start = getDataStart(entry);
+        switch (entry.getMethod())
+        {
+            case ZipEntry.STORED :
+                return new ByteBufferInputStream(slice(start, entry.getSize()));
+            case ZipEntry.DEFLATED :
+                return new PooledInflaterInputStream(
+                    new ByteBufferInputStream(slice(start, entry.getCompressedSize())),
+                    entry.getSize());
+            default:
+                return getZipFileInputStream(entry);
+        }
+    }
+
+    private boolean hasLocalHeader(int localOffset)
+    {
+        if (localOffset < 0 || localOffset + LOC_SIZE > mapped.limit())
+        {
+            return false;
+        }
+        try
+        {
+            return mapped.getInt(localOffset) == LOC_SIG;
+        }
+        catch (InternalError e)
+        {
+            // the mapped JAR was truncated; read from the zip file instead
+            return false;
+        }
+    }
+
+    private InputStream getFileInputStream(ZipEntry entry) throws IOException
+    {
+        long start = getFileDataStart(entry);
+        if (start < 0)
+        {
+            throw new ZipException("Invalid local header for entry: " + entry.getName());
+        }
+        switch (entry.getMethod())
+        {
+            case ZipEntry.STORED :
+                return new ChannelInputStream(base + start, entry.getSize());
+            case ZipEntry.DEFLATED :
+                return new PooledInflaterInputStream(
+                    new ChannelInputStream(base + start, entry.getCompressedSize()),
+                    entry.getSize());
+            default:
+                return getZipFileInputStream(entry);
+        }
+    }
+
+    private InputStream getZipFileInputStream(ZipEntry entry) throws IOException
+    {
+        if (zipFile == null)
+        {
+            throw new ZipException("Cannot read entry: " + entry.getName());
+        }
+        return zipFile.getInputStream(entry);
+    }
+
+    private int getDataStart(ZipEntry entry)
+    {
+        int local = localOffsets.get(entry.getName());
+        return local + LOC_SIZE + (mapped.getShort(local + 26) & 0xFFFF)
+            + (mapped.getShort(local + 28) & 0xFFFF);
+    }
+
+    private ByteBuffer slice(int start, long size) throws IOException
+    {
+        if (size < 0 || start + size > mapped.limit())
+        {
+            throw new IOException("Invalid entry size: " + size);
+        }
+        ByteBuffer result = mapped.duplicate();
+        result.position(start);
+        result.limit(start + (int) size);
+        return result.slice();
+    }
+
+    private static Inflater getInflater()
+    {
+        synchronized (inflaters)
+        {
+            Inflater inflater = inflaters.poll();
+            if (inflater != null)
+            {
+                return inflater;
+            }
+        }
+        return new Inflater(true);
+    }
+
+    private static void releaseInflater(Inflater inflater)
+    {
+        inflater.reset();
+        synchronized (inflaters)
+        {
+            if (inflaters.size() < MAX_POOLED_INFLATERS)
+            {
+                inflaters.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Reads a zero-copy slice of the mapped JAR.
+     */
+    static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            try
+            {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+            catch (InternalError e)
+            {
+                throw truncated(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            try
+            {
+                buffer.get(b, off, len);
+            }
+            catch (InternalError e)
+            {
+                throw truncated(e);
+            }
+            return len;
+        }
+
+        private IOException truncated(InternalError e)
+        {
+            // the VM reports a read of a mapped page past the end of the file this way
+            return new IOException("The mapped JAR was truncated", e);
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Reads a range of the file of this JAR with positional reads, which do
+     * not share a file position with other readers.
+     */
+    final class ChannelInputStream extends InputStream
+    {
+        private long position;
+        private final long end;
+
+        ChannelInputStream(long position, long length)
+        {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (position >= end)
+            {
+                return -1;
+            }
+            len = (int) Math.min(len, end - position);
+            int read = getChannel().read(ByteBuffer.wrap(b, off, len), position);
+            if (read < 0)
+            {
+                throw new EOFException("The nested JAR was truncated");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    /**
+     * Inflates an entry with a pooled inflater that is returned on close.
+     */
+    static final class PooledInflaterInputStream extends InflaterInputStream
+    {
+        private final long size;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        PooledInflaterInputStream(InputStream in, long size)
+        {
+            super(in, getInflater(), 8192);
+            this.size = size;
+        }
+
+        @Override
+        protected void fill() throws IOException
+        {
+            if (eof)
+            {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1)
+            {
+                // an inflater without the zlib wrapper needs an extra dummy byte
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            if (closed)
+            {
+                return 0;
+            }
+            long avail = size - inf.getBytesWritten();
+            return avail > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.max(0, avail);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                releaseInflater(inf);
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.osgi.framework.connect.ConnectContent;
+
+/**
+ * The content of a JAR nested in another JAR, for example a JAR in the
+ * BOOT-INF/lib directory of a Spring Boot JAR.  The nested JAR is read in
+ * place from the outer JAR without extracting it to a temporary file.
+ */
+public class NestedJarConnectContent implements ConnectContent
+{
+    private static final String SEPARATOR = "!/";
+
+    final File outer;
+    final String entryName;
+    private final JarEntryIndex index;
+
+    public NestedJarConnectContent(File outer, String entryName) throws IOException
+    {
+        // read the central directory up front so an unsupported JAR fails early
+        this(outer, entryName, JarEntryIndex.nested(outer, entryName));
+    }
+
+    NestedJarConnectContent(File outer, String entryName, JarEntryIndex index)
+    {
+        this.outer = outer;
+        this.entryName = entryName;
+        this.index = index;
+    }
+
+    /**
+     * Returns the nested JAR for the specified manifest URL, for example
+     * {@code jar:file:/path/to/out.jar!/path/to/inner.jar!/META-INF/MANIFEST.MF}.
+     * @param manifest the manifest URL
+     * @param outers the indexes of the outer JARs that are already open; the
+     *        index of a new outer JAR is added and must be closed by the caller
+     * @return the nested JAR or {@code null} if the URL is not for a nested JAR
+     *         that can be read in place
+     */
+    static NestedJarConnectContent fromManifest(URL manifest,
+        Map<File, JarEntryIndex> outers)
+    {
+        String spec = manifest.toString();
+        int outerEnd = spec.indexOf(SEPARATOR);
+        int innerEnd = outerEnd < 0 ? -1 : spec.indexOf(SEPARATOR, outerEnd + 2);
+        if (innerEnd < 0 || spec.indexOf(SEPARATOR, innerEnd + 2) >= 0)
+        {
+            // not nested or nested more than one level
+            return null;
+        }
+        try
+        {
+            URL outerURL = new URL(spec.substring(
+                AtomosRuntimeBase.JAR_PROTOCOL.length() + 1, outerEnd));
+            if (!AtomosRuntimeBase.FILE_PROTOCOL.equals(outerURL.getProtocol()))
+            {
+                return null;
+            }
+            File outer = new File(outerURL.toURI());
+            // the same outer JAR is indexed once for all of its nested JARs
+            JarEntryIndex outerIndex = outers.get(outer);
+            if (outerIndex == null)
+            {
+                JarEntryIndex created = new JarEntryIndex(new ZipFile(outer));
+                outerIndex = outers.putIfAbsent(outer, created);
+                if (outerIndex == null)
+                {
+                    outerIndex = created;
+                }
+                else
+                {
+                    created.close();
+                }
+            }
+            // the entry name in the URL is encoded, a plus is not a space
+            String entryName = URLDecoder.decode(
+                spec.substring(outerEnd + 2, innerEnd).replace("+", "%2B"), "UTF-8");
+            return new NestedJarConnectContent(outer, entryName,
+                outerIndex.getNested(entryName));
+        }
+        catch (Exception e)
+        {
+            // let the caller fall back to the JAR URL connection
+            return null;
+        }
+    }
+
+    /**
+     * Returns the name of the nested JAR in the form {@code outer!/inner}.
+     * @return the name of the nested JAR
+     */
+    public String getName()
+    {
+        return outer.getPath() + SEPARATOR + entryName;
+    }
+
+    /**
+     * Returns the JAR URL of the root of the nested JAR.
+     * @return the URL of the nested JAR
+     */
+    public URL getURL()
+    {
+        try
+        {
+            String encodedName = new URI(null, null, entryName, null).getRawPath();
+            return new URL(AtomosRuntimeBase.JAR_PROTOCOL + ":" + outer.toURI()
+                + SEPARATOR + encodedName + SEPARATOR);
+        }
+        catch (MalformedURLException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public void open() throws IOException
+    {
+        // do nothing
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // release the outer JAR file; it is opened again if the content is used
+        index.close();
+    }
+
+    @Override
+    public Optional<ClassLoader> getClassLoader()
+    {
+        return Optional.of(getClass().getClassLoader());
+    }
+
+    @Override
+    public Iterable<String> getEntries() throws IOException
+    {
+        return index.getNames();
+    }
+
+    @Override
+    public Optional<ConnectEntry> getEntry(String name)
+    {
+        ZipEntry entry = index.getEntry(name);
+        if (entry != null)
+        {
+            return Optional.of(new NestedJarConnectEntry(entry));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<Map<String, String>> getHeaders()
+    {
+        return Optional.empty();
+    }
+
+    class NestedJarConnectEntry implements ConnectEntry
+    {
+        final ZipEntry entry;
+
+        public NestedJarConnectEntry(ZipEntry entry)
+        {
+            this.entry = entry;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return entry.getSize();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return index.getInputStream(entry);
+        }
+
+        @Override
+        public long getLastModified()
+        {
+            return entry.getTime();
+        }
+
+        @Override
+        public String getName()
+        {
+            return entry.getName();
+        }
+
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.apache.felix.atomos.runtime.AtomosLayer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Installs and starts the Atomos contents of a layer and its descendant
+ * layers in parallel.  Layers are processed in waves; a layer is processed
+ * once all of its parents have been processed, so layers that do not depend
+ * on each other are processed concurrently.  The contents of the layers in
+ * a wave are installed in parallel.  The installed bundles are then resolved
+ * and started in parallel, in waves that start the providers of a bundle
+ * before the bundle itself.
+ */
+class ParallelContentInstaller
+{
+    private final AtomosRuntimeBase atomosRuntime;
+    private final BundleContext bc;
+
+    ParallelContentInstaller(AtomosRuntimeBase atomosRuntime, BundleContext bc)
+    {
+        this.atomosRuntime = atomosRuntime;
+        this.bc = bc;
+    }
+
+    void installAtomosContents(AtomosLayer atomosLayer, boolean startBundles,
+        int startOptions) throws BundleException
+    {
+        long start = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            Set<AtomosLayer> all = getLayers(atomosLayer);
+            Set<AtomosLayer> done = new HashSet<>();
+            List<AtomosLayer> wave = new ArrayList<>();
+            wave.add(atomosLayer);
+            while (!wave.isEmpty())
+            {
+                List<Bundle> bundles = install(pool, wave);
+                if (!startBundles)
+                {
+                    // same as the sequential install; child layers are only done when starting
+                    break;
+                }
+                start(pool, bundles, startOptions);
+                done.addAll(wave);
+                wave = getNextWave(wave, all, done);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        if (atomosRuntime.isDebug())
+        {
+            atomosRuntime.debug("Installed Atomos contents in %s ms using %s threads",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads);
+        }
+    }
+
+    private Set<AtomosLayer> getLayers(AtomosLayer atomosLayer)
+    {
+        Set<AtomosLayer> result = new HashSet<>();
+        Deque<AtomosLayer> stack = new ArrayDeque<>();
+        stack.push(atomosLayer);
+        while (!stack.isEmpty())
+        {
+            AtomosLayer layer = stack.pop();
+            if (result.add(layer))
+            {
+                layer.getChildren().forEach(stack::push);
+            }
+        }
+        return result;
+    }
+
+    private List<AtomosLayer> getNextWave(List<AtomosLayer> previous,
+        Set<AtomosLayer> all, Set<AtomosLayer> done)
+    {
+        Set<AtomosLayer> result = new LinkedHashSet<>();
+        for (AtomosLayer layer : previous)
+        {
+            for (AtomosLayer child : layer.getChildren())
+            {
+                // parents outside of the processed layers are not waited on
+                if (!done.contains(child) && child.getParents().stream().allMatch(
+                    (p) -> done.contains(p) || !all.contains(p)))
+                {
+                    result.add(child);
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private List<Bundle> install(ForkJoinPool pool, List<AtomosLayer> layers)
+        throws BundleException
+    {
+        List<Callable<Bundle>> installs = new ArrayList<>();
+        for (AtomosLayer layer : layers)
+        {
+            for (AtomosContent atomosContent : layer.getAtomosContents())
+            {
+                if (atomosRuntime.getBundle(atomosContent) == null)
+                {
+                    installs.add(() -> atomosContent.install("atomos"));
+                }
+            }
+        }
+        List<Bundle> result = new ArrayList<>();
+        for (Bundle b : invokeAll(pool, installs))
+        {
+            if (b != null && b.getBundleId() != 0)
+            {
+                result.add(b);
+            }
+        }
+        return result;
+    }
+
+    private void start(ForkJoinPool pool, List<Bundle> bundles, int startOptions)
+        throws BundleException
+    {
+        if (bundles.isEmpty())
+        {
+            return;
+        }
+        // resolve first so the wiring can be used to order the starts
+        bc.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(
+            FrameworkWiring.class).resolveBundles(bundles);
+        List<Bundle> hosts = new ArrayList<>();
+        for (Bundle b : bundles)
+        {
+            BundleRevision rev = b.adapt(BundleRevision.class);
+            if ((rev.getTypes() & BundleRevision.TYPE_FRAGMENT) == 0)
+            {
+                hosts.add(b);
+            }
+        }
+        for (List<Bundle> wave : getStartWaves(hosts))
+        {
+            List<Callable<Bundle>> starts = new ArrayList<>(wave.size());
+            for (Bundle b : wave)
+            {
+                starts.add(() -> {
+                    atomosRuntime.startBundle(b, startOptions);
+                    return b;
+                });
+            }
+            invokeAll(pool, starts);
+        }
+    }
+
+    private List<List<Bundle>> getStartWaves(List<Bundle> hosts)
+    {
+        Map<Bundle, Set<Bundle>> providers = new HashMap<>();
+        for (Bundle b : hosts)
+        {
+            Set<Bundle> bundleProviders = new HashSet<>();
+            BundleWiring wiring = b.adapt(BundleWiring.class);
+            if (wiring != null)
+            {
+                for (BundleWire wire : wiring.getRequiredWires(null))
+                {
+                    bundleProviders.add(wire.getProvider().getBundle());
+                }
+            }
+            bundleProviders.remove(b);
+            providers.put(b, bundleProviders);
+        }
+
+        List<List<Bundle>> waves = new ArrayList<>();
+        Set<Bundle> remaining = new LinkedHashSet<>(hosts);
+        while (!remaining.isEmpty())
+        {
+            List<Bundle> wave = new ArrayList<>();
+            for (Bundle b : remaining)
+            {
+                if (providers.get(b).stream().noneMatch(remaining::contains))
+                {
+                    wave.add(b);
+                }
+            }
+            if (wave.isEmpty())
+            {
+                // the remaining bundles have cyclic dependencies; start them together
+                wave.addAll(remaining);
+            }
+            remaining.removeAll(wave);
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool,
+        Collection<Callable<T>> tasks) throws BundleException
+    {
+        List<T> results = new ArrayList<>(tasks.size());
+        Exception failure = null;
+        for (Future<T> future : pool.invokeAll(tasks))
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new BundleException("Interrupted installing Atomos contents.", e);
+            }
+            catch (ExecutionException e)
+            {
+                Exception cause = e.getCause() instanceof Exception
+                    ? (Exception) e.getCause() : e;
+                if (failure == null)
+                {
+                    failure = cause;
+                }
+                else
+                {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure instanceof BundleException)
+        {
+            throw (BundleException) failure;
+        }
+        if (failure instanceof RuntimeException)
+        {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null)
+        {
+            throw new BundleException("Error installing Atomos contents.", failure);
+        }
+        return results;
+    }
+}
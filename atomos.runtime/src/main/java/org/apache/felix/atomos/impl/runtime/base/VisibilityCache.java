@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.apache.felix.atomos.runtime.AtomosLayer;
+
+/**
+ * A memo of visibility checks between Atomos layers or contents and candidate
+ * bundle locations.
+ * A cache is created for each resolver hook and is only used for the duration
+ * of a single resolve operation.
+ */
+public final class VisibilityCache
+{
+    // keyed by the layer id of the requiring content, then by candidate bundle location
+    private final Map<Long, Map<String, Boolean>> visible = new ConcurrentHashMap<>();
+    // keyed by the requiring content, then by candidate bundle location
+    private final Map<AtomosContent, Map<String, Boolean>> readable = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    VisibilityCache()
+    {
+    }
+
+    boolean isVisible(AtomosLayer layer, String candidateLocation,
+        BiPredicate<AtomosLayer, String> check)
+    {
+        Map<String, Boolean> forLayer = visible.computeIfAbsent(layer.getId(),
+            (id) -> new ConcurrentHashMap<>());
+        return isVisible(forLayer, layer, candidateLocation, check);
+    }
+
+    /**
+     * Checks if a candidate is visible to a specific requiring content, for
+     * runtimes where visibility depends on more than the layer of the content.
+     * @param requiring the requiring content
+     * @param candidateLocation the candidate bundle location
+     * @param check the check to use if the result is not cached
+     * @return true if the candidate is visible
+     */
+    public boolean isVisible(AtomosContent requiring, String candidateLocation,
+        BiPredicate<AtomosContent, String> check)
+    {
+        Map<String, Boolean> forContent = readable.computeIfAbsent(requiring,
+            (c) -> new ConcurrentHashMap<>());
+        return isVisible(forContent, requiring, candidateLocation, check);
+    }
+
+    private <T> boolean isVisible(Map<String, Boolean> cache, T requiring,
+        String candidateLocation, BiPredicate<T, String> check)
+    {
+        Boolean result = cache.get(candidateLocation);
+        if (result != null)
+        {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        result = check.test(requiring, candidateLocation);
+        cache.put(candidateLocation, result);
+        return result;
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    long getMisses()
+    {
+        return misses.sum();
+    }
+}
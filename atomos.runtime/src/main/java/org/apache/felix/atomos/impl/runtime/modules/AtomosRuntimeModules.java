@@ -44,12 +44,15 @@ import java.util.jar.Manifest;
 import java.util.stream.Collectors;
 
 import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
 import org.apache.felix.atomos.impl.runtime.base.JavaServiceNamespace;
+import org.apache.felix.atomos.impl.runtime.base.VisibilityCache;
 import org.apache.felix.atomos.runtime.AtomosContent;
 import org.apache.felix.atomos.runtime.AtomosLayer;
 import org.apache.felix.atomos.runtime.AtomosRuntime;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Version;
 import org.osgi.framework.connect.ConnectContent;
@@ -62,12 +65,34 @@ import org.osgi.resource.Namespace;
 
 public class AtomosRuntimeModules extends AtomosRuntimeBase
 {
+    /**
+     * System property with the path of a class list file.  The classes defined
+     * for layers using the {@link LoaderType#OSGI OSGI} loader type are recorded
+     * to the file when the runtime stops and are preloaded in parallel when a
+     * later run creates the layers.  The file is not a CDS class list; classes
+     * defined by module connect loaders cannot be archived by the JVM.
+     */
+    public static final String ATOMOS_CLASS_LIST_PROP = "atomos.class.list";
+
     private final Module thisModule = AtomosRuntimeModules.class.getModule();
     private final Configuration thisConfig = thisModule.getLayer() == null ? null
         : thisModule.getLayer().configuration();
+    private final ModuleReaderPool moduleReaders = new ModuleReaderPool();
+    private final ModuleClassList classList = createClassList();
+    private final ModuleHeaderCache headerCache = new ModuleHeaderCache(this);
     private final Map<Configuration, AtomosLayerBase> byConfig = new HashMap<>();
     private final AtomosLayer bootLayer = createBootLayer();
 
+    public AtomosRuntimeModules()
+    {
+        this(null);
+    }
+
+    public AtomosRuntimeModules(Map<String, String> configuration)
+    {
+        super(configuration);
+    }
+
     private AtomosLayer createBootLayer()
     {
         return createAtomosLayer(thisConfig, "boot", -1, LoaderType.SINGLE);
@@ -150,10 +175,13 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
             {
                 name = "empty";
             }
-            AtomosLayerModules result = new AtomosLayerModules(config, parents, id, name,
-                loaderType, paths);
-            addAtomosLayer(result);
-            return result;
+            try (Span create = getTimeline().begin("layer", name))
+            {
+                AtomosLayerModules result = new AtomosLayerModules(config, parents, id,
+                    name, loaderType, paths);
+                addAtomosLayer(result);
+                return result;
+            }
         }
         finally
         {
@@ -201,9 +229,78 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
     @Override
     protected void removedLayer(AtomosLayerBase atomosLayer)
     {
-        byConfig.remove(
-            atomosLayer.adapt(ModuleLayer.class).map((l) -> l.configuration()).orElse(
-                null));
+        ModuleLayer moduleLayer = atomosLayer.adapt(ModuleLayer.class).orElse(null);
+        byConfig.remove(moduleLayer == null ? null : moduleLayer.configuration());
+        if (moduleLayer != null && atomosLayer.getLoaderType() == LoaderType.OSGI)
+        {
+            // release the readers of the loaders defined for the removed layer
+            moduleLayer.modules().forEach((m) -> {
+                if (m.getClassLoader() instanceof ModuleConnectLoader)
+                {
+                    ((ModuleConnectLoader) m.getClassLoader()).close();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected boolean canActivateLazily(AtomosLayerBase.AtomosContentBase atomosContent)
+    {
+        // only a module connect loader observes its class loads
+        return atomosContent.adapt(Module.class).map(
+            (m) -> m.getClassLoader() instanceof ModuleConnectLoader).orElse(false);
+    }
+
+    @Override
+    protected void lazyActivationPending(AtomosLayerBase.AtomosContentBase atomosContent)
+    {
+        atomosContent.adapt(Module.class).map(Module::getClassLoader).filter(
+            ModuleConnectLoader.class::isInstance).ifPresent(
+                (l) -> ((ModuleConnectLoader) l).resetActivationTrigger());
+    }
+
+    ModuleReaderPool getModuleReaders()
+    {
+        return moduleReaders;
+    }
+
+    private ModuleClassList createClassList()
+    {
+        String classListProp = System.getProperty(ATOMOS_CLASS_LIST_PROP);
+        return classListProp == null ? null
+            : new ModuleClassList(this, new File(classListProp).toPath());
+    }
+
+    ModuleClassList getClassList()
+    {
+        return classList;
+    }
+
+    @Override
+    public void initialize(File storage, Map<String, String> configuration)
+    {
+        super.initialize(storage, configuration);
+        try (Span load = getTimeline().begin("storage", "load module headers"))
+        {
+            headerCache.load(storage);
+        }
+    }
+
+    @Override
+    protected void stop(BundleContext bc) throws BundleException
+    {
+        ModuleConnectLoader.debugDefineStats(this);
+        super.stop(bc);
+    }
+
+    @Override
+    protected void saveCaches()
+    {
+        if (classList != null)
+        {
+            classList.save();
+        }
+        headerCache.save();
     }
 
     ModuleLayer findModuleLayer(Configuration config, List<AtomosLayer> parents,
@@ -254,6 +351,13 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
                     ModuleConnectLoader loader = (ModuleConnectLoader) m.getClassLoader();
                     loader.initEdges(m, config, classLoaders);
                 });
+                if (classList != null)
+                {
+                    try (Span preload = getTimeline().begin("preload", "classes"))
+                    {
+                        classList.preload(classLoaders);
+                    }
+                }
                 return controller.layer();
             case MANY:
                 return ModuleLayer.defineModulesWithManyLoaders(config, parentLayers,
@@ -280,6 +384,32 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
         return super.getAtomosKey(classFromBundle);
     }
 
+    /**
+     * Returns the headers of a module content.  The headers are taken from the
+     * header cache when the module has not changed since they were generated.
+     * @param content the module content
+     * @return the headers
+     */
+    Optional<Map<String, String>> getHeaders(ModuleConnectContent content)
+    {
+        String key = ModuleHeaderCache.getKey(content.reference, isLazyActivation()
+            && content.module.getClassLoader() instanceof ModuleConnectLoader);
+        if (key != null)
+        {
+            Map<String, String> cached = headerCache.get(key);
+            if (cached != null)
+            {
+                return Optional.of(new HashMap<>(cached));
+            }
+        }
+        Optional<Map<String, String>> result = createManifest(content, content.module);
+        if (key != null)
+        {
+            result.ifPresent((h) -> headerCache.put(key, h));
+        }
+        return result;
+    }
+
     protected Optional<Map<String, String>> createManifest(ConnectContent connectContent,
         Module module)
     {
@@ -438,12 +568,19 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
         {
             result.put(Constants.REQUIRE_CAPABILITY, requirements.toString());
         }
+
+        // only modules defined by a ModuleConnectLoader can trigger their own activation
+        if (isLazyActivation() && module.getClassLoader() instanceof ModuleConnectLoader)
+        {
+            result.putIfAbsent(Constants.BUNDLE_ACTIVATIONPOLICY,
+                Constants.ACTIVATION_LAZY);
+        }
         return result;
     }
 
     @Override
     protected void filterBasedOnReadEdges(AtomosContent atomosContent,
-        Collection<BundleCapability> candidates)
+        Collection<BundleCapability> candidates, VisibilityCache visibility)
     {
         if (atomosContent == null)
         {
@@ -453,31 +590,33 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
         Module m = atomosContent.adapt(Module.class).orElse(null);
         if (m == null)
         {
-            filterNotVisible(atomosContent, candidates);
+            filterNotVisible(atomosContent, candidates, visibility);
         }
         else
         {
             for (Iterator<BundleCapability> iCands = candidates.iterator(); iCands.hasNext();)
             {
                 BundleCapability candidate = iCands.next();
-                AtomosContent candidateAtomos = getByConnectLocation(
-                    candidate.getRevision().getBundle().getLocation(), true);
-                if (candidateAtomos == null
-                    || candidateAtomos.adapt(Module.class).isEmpty())
+                if (!visibility.isVisible(atomosContent,
+                    candidate.getRevision().getBundle().getLocation(),
+                    (c, location) -> canRead(m, location)))
                 {
                     iCands.remove();
                 }
-                else
-                {
-                    if (!m.canRead(candidateAtomos.adapt(Module.class).get()))
-                    {
-                        iCands.remove();
-                    }
-                }
             }
         }
     }
 
+    private boolean canRead(Module m, String candidateLocation)
+    {
+        AtomosContent candidateAtomos = getByConnectLocation(candidateLocation, true);
+        if (candidateAtomos == null)
+        {
+            return false;
+        }
+        return candidateAtomos.adapt(Module.class).map(m::canRead).orElse(false);
+    }
+
     public class AtomosLayerModules extends AtomosLayerBase
     {
         private final ModuleLayer moduleLayer;
@@ -537,6 +676,16 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
 
         private Set<AtomosContentBase> findModuleLayerAtomosBundles(
             ModuleLayer searchLayer)
+        {
+            try (Span discovery = getTimeline().begin("discovery",
+                "module layer " + getName()))
+            {
+                return findModuleLayerAtomosBundles0(searchLayer);
+            }
+        }
+
+        private Set<AtomosContentBase> findModuleLayerAtomosBundles0(
+            ModuleLayer searchLayer)
         {
             Map<ModuleDescriptor, Module> descriptorMap = searchLayer.modules().stream().collect(
                 Collectors.toMap(Module::getDescriptor, m -> (m)));
@@ -661,19 +810,10 @@ public class AtomosRuntimeModules extends AtomosRuntimeBase
         {
             return null;
         }
-        String location;
-        lockRead();
-        try
+        String location = getByAtomosKey(module);
+        if (location == null)
         {
-            location = atomosKeyToConnectLocation.get(module);
-            if (location == null)
-            {
-                return null;
-            }
-        }
-        finally
-        {
-            unlockRead();
+            return null;
         }
         BundleContext bc = getBundleContext();
         if (bc == null)
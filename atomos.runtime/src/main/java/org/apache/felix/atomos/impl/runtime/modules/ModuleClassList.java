@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosStorage;
+
+/**
+ * A list of the classes defined by module connect loaders.  The classes
+ * recorded during one run are saved to the list file and are preloaded in
+ * parallel when a later run creates a layer with the {@code OSGI} loader type.
+ * <p>
+ * The list file uses the internal class names, one per line.  Only the
+ * classes defined during the last run are kept so classes that no longer
+ * exist are dropped from the list.
+ * <p>
+ * The list is not a CDS class list.  The JVM only archives classes defined by
+ * the built-in class loaders, so the classes of module connect loaders cannot
+ * be part of an AppCDS or dynamic CDS archive.  A class list for the boot and
+ * module path layers is written by the JVM itself with
+ * {@code -XX:DumpLoadedClassList}.
+ */
+final class ModuleClassList
+{
+    private final AtomosRuntimeModules atomosRuntime;
+    private final Path file;
+    // class names in internal form from the list file
+    private final List<String> preload;
+    private final Set<String> recorded = ConcurrentHashMap.newKeySet();
+
+    ModuleClassList(AtomosRuntimeModules atomosRuntime, Path file)
+    {
+        this.atomosRuntime = atomosRuntime;
+        this.file = file;
+        this.preload = read(file);
+    }
+
+    private List<String> read(Path file)
+    {
+        if (!Files.isRegularFile(file))
+        {
+            atomosRuntime.debug("No class list found at %s", file);
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                {
+                    result.add(line);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            atomosRuntime.debug("Ignoring class list %s: %s", file, e);
+            return Collections.emptyList();
+        }
+        return result;
+    }
+
+    void record(String className)
+    {
+        recorded.add(className.replace('.', '/'));
+    }
+
+    /**
+     * Loads the listed classes that belong to the specified loaders in parallel.
+     * @param loaders the loaders of a layer keyed by module name
+     */
+    void preload(Map<String, ModuleConnectLoader> loaders)
+    {
+        if (preload.isEmpty() || loaders.isEmpty())
+        {
+            return;
+        }
+        Map<String, ModuleConnectLoader> byPackage = new HashMap<>();
+        for (ModuleConnectLoader loader : loaders.values())
+        {
+            for (String pkg : loader.getModulePackages())
+            {
+                byPackage.put(pkg.replace('.', '/'), loader);
+            }
+        }
+        LongAdder loaded = new LongAdder();
+        preload.parallelStream().forEach((name) -> {
+            int lastSlash = name.lastIndexOf('/');
+            ModuleConnectLoader loader = lastSlash < 0 ? null
+                : byPackage.get(name.substring(0, lastSlash));
+            if (loader != null && loader.preloadClass(name.replace('/', '.')))
+            {
+                loaded.increment();
+            }
+        });
+        atomosRuntime.debug("Preloaded %s classes from %s", loaded, file);
+    }
+
+    /**
+     * Writes the classes defined during this run to the list file.  Listed
+     * classes that failed to preload are not recorded and are dropped.
+     */
+    void save()
+    {
+        if (recorded.isEmpty())
+        {
+            // no module connect loader defined a class; keep the existing list
+            return;
+        }
+        Set<String> all = new TreeSet<>(recorded);
+        // write a temporary file first so a failed write never loses the list
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try
+        {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp,
+                StandardCharsets.UTF_8))
+            {
+                for (String name : all)
+                {
+                    out.write(name);
+                    out.newLine();
+                }
+            }
+            AtomosStorage.replace(tmp, file);
+        }
+        catch (IOException e)
+        {
+            atomosRuntime.debug("Failed to save class list %s: %s", file, e);
+            return;
+        }
+        atomosRuntime.debug("Saved %s classes to %s", all.size(), file);
+    }
+}
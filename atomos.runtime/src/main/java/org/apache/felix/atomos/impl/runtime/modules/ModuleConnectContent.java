@@ -41,19 +41,21 @@ public class ModuleConnectContent implements ConnectContent
     }
 
     @Override
-    public void open() throws IOException
+    public synchronized void open() throws IOException
     {
-        reader = reference.open();
+        if (reader == null)
+        {
+            reader = atomosRuntime.getModuleReaders().acquire(reference);
+        }
     }
 
     @Override
-    public void close() throws IOException
+    public synchronized void close() throws IOException
     {
-        ModuleReader current = reader;
-        if (current != null)
+        if (reader != null)
         {
             reader = null;
-            current.close();
+            atomosRuntime.getModuleReaders().release(reference);
         }
     }
 
@@ -109,7 +111,7 @@ public class ModuleConnectContent implements ConnectContent
         return headers.updateAndGet((h) -> {
             if (h == null)
             {
-                h = atomosRuntime.createManifest(this, module);
+                h = atomosRuntime.getHeaders(this);
             }
             return h;
         });
@@ -14,26 +14,34 @@
 package org.apache.felix.atomos.impl.runtime.modules;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.module.Configuration;
 import java.lang.module.ModuleReader;
 import java.lang.module.ModuleReference;
 import java.lang.module.ResolvedModule;
 import java.net.URI;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.SecureClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.BundleReference;
 
 public final class ModuleConnectLoader extends SecureClassLoader implements BundleReference
@@ -44,34 +52,64 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
         ClassLoader.registerAsParallelCapable();
     }
 
+    private final static int MAX_MISSING_RESOURCES = 1024;
+
+    private final static int INITIAL_CLASS_BUFFER = 8192;
+    private final static int MAX_POOLED_CLASS_BUFFER = 1024 * 1024;
+    // a per thread buffer the class bytes are read into; taken while in use so
+    // a nested class load on the same thread allocates its own buffer
+    private final static ThreadLocal<byte[]> classBuffers = new ThreadLocal<>();
+    private final static LongAdder definedClasses = new LongAdder();
+    private final static LongAdder definedBytes = new LongAdder();
+    private final static LongAdder allocatedBytes = new LongAdder();
+    // set while a thread preloads classes; supertypes loaded by the VM for a
+    // preloaded class must not trigger lazy activation either
+    private final static ThreadLocal<Boolean> preloading = new ThreadLocal<>();
+
     private final ResolvedModule resolvedModule;
     private final ModuleReference reference;
+    // shared with the connect content of the module
     private final ModuleReader reader;
     private final AtomosRuntimeModules atomosRuntime;
     private final AtomicReference<Module> module = new AtomicReference<>();
 
-    private final HashMap<String, ClassLoader> edges = new HashMap<String, ClassLoader>();
+    // immutable package -> class loader table; this loader is mapped for local packages
+    private volatile Map<String, ClassLoader> packageLoaders = Map.of();
+
+    // the module content does not change so resources not found can be remembered
+    private final Set<String> missingResources = ConcurrentHashMap.newKeySet();
+
+    // set after a local class load; cleared when the bundle waits for lazy activation
+    private volatile boolean activationTriggered = false;
 
     public ModuleConnectLoader(ResolvedModule resolvedModule, AtomosRuntimeModules atomosRuntimeModules) throws IOException
     {
         super("ModuleConnectLoader-" + resolvedModule.name(), null);
 
         this.resolvedModule = resolvedModule;
-        //TODO remove reference and reader? Or Reader needs to be closed?
         this.reference = resolvedModule.reference();
-        this.reader = reference.open();
+        this.reader = atomosRuntimeModules.getModuleReaders().acquire(reference);
         this.atomosRuntime = atomosRuntimeModules;
     }
 
-    /** explicit call from AtomosRuntimBundle to allow resources to be freed.
+    /** explicit call when the layer of this loader is removed to allow resources to be freed.
      *  
      */
-    public static void close()
+    void close()
     {
-        //TODO 
+        try
+        {
+            atomosRuntime.getModuleReaders().release(reference);
+        }
+        catch (IOException e)
+        {
+            atomosRuntime.debug("Failed to close the reader for %s: %s",
+                resolvedModule.name(), e);
+        }
     }
 
-    /** Setup the package -> class loader mapping to other module loaders
+    /** Setup the package -> class loader mapping for the local packages and
+     *  to other module loaders
      *
      * @param module module associated with this class loader
      * @param loaderConfig configuration containing
@@ -82,6 +120,11 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
         Map<String, ? extends ClassLoader> loaders)
     {
         this.module.set(module);
+        HashMap<String, ClassLoader> edges = new HashMap<String, ClassLoader>();
+        for (String pkg : module.getDescriptor().packages())
+        {
+            edges.put(pkg, this);
+        }
         for (ResolvedModule moduleRead : resolvedModule.reads())
         {
             ClassLoader loaderForModuleRead;
@@ -103,6 +146,7 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
                 }
             });
         }
+        packageLoaders = Map.copyOf(edges);
     }
 
     private String packageName(String name)
@@ -134,6 +178,10 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
         }
         else
         {
+            if (missingResources.contains(name))
+            {
+                return null;
+            }
             try
             {
                 resource = AccessController.doPrivileged(
@@ -141,6 +189,14 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
                         URI rURI = this.reader.find(name).orElse(null);
                         return rURI == null ? null : rURI.toURL();
                     }));
+                if (resource == null)
+                {
+                    if (missingResources.size() >= MAX_MISSING_RESOURCES)
+                    {
+                        missingResources.clear();
+                    }
+                    missingResources.add(name);
+                }
             }
             catch (PrivilegedActionException e)
             {
@@ -170,7 +226,7 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
             //ignore
         }
         String pkg = packageName(name);
-        if (this.module.get().getDescriptor().packages().contains(pkg))
+        if (packageLoaders.get(pkg) == this)
         {
             // non-class resources should be returned by this method if the package is open unconditionally
             if (!name.endsWith(".class") && !name.endsWith("/")
@@ -185,8 +241,10 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
     @Override
     public Enumeration<URL> findResources(String name) throws IOException
     {
-        // TODO
-        return null;
+        // a single module can only have one resource of a given name
+        URL resource = findResource(name);
+        return resource == null ? Collections.emptyEnumeration()
+            : Collections.enumeration(List.of(resource));
     }
 
     @Override
@@ -195,6 +253,15 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
         URL retVal = null;
         retVal = findResource(name);
         if (retVal == null)
+        {
+            // follow the read edge for the package of the resource like loadClass does
+            ClassLoader l = getEdge(name);
+            if (l != null)
+            {
+                retVal = l.getResource(name);
+            }
+        }
+        if (retVal == null)
         {
             retVal = ClassLoader.getSystemResource(name);
         }
@@ -205,8 +272,38 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
     public Enumeration<URL> getResources(String name) throws IOException
     {
         // first check this class loader resources same as findResources(String name) does
-        // then combine the results with ClassLoader.getSystemResources(name);
-        return null;
+        // then the loader of the read edge and combine the results with ClassLoader.getSystemResources(name);
+        List<URL> result = new ArrayList<>();
+        URL local = findResource(name);
+        if (local != null)
+        {
+            result.add(local);
+        }
+        ClassLoader l = getEdge(name);
+        if (l != null)
+        {
+            addResources(result, l.getResources(name));
+        }
+        addResources(result, ClassLoader.getSystemResources(name));
+        return Collections.enumeration(result);
+    }
+
+    private ClassLoader getEdge(String name)
+    {
+        ClassLoader l = packageLoaders.get(packageName(name));
+        return l == this ? null : l;
+    }
+
+    private static void addResources(List<URL> result, Enumeration<URL> resources)
+    {
+        while (resources.hasMoreElements())
+        {
+            URL resource = resources.nextElement();
+            if (!result.contains(resource))
+            {
+                result.add(resource);
+            }
+        }
     }
 
     // -- finding/loading classes
@@ -218,29 +315,61 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
     protected Class<?> findClass(String className) throws ClassNotFoundException
     {
         // map class name to a resource name and use reader to find the bytes
-        // use  SecureClassLoader.defineClass(String, ByteBuffer, CodeSource) to define the class
+        // read the bytes into a pooled buffer and use SecureClassLoader.defineClass(String, byte[], int, int, CodeSource) to define the class
         // any unexpected checked exceptions should be wrapped in a LinkageError that LinkageError should be thrown
         Class<?> cls = null;
-        ByteBuffer clsBytes = null;
         try
         {
-            Optional<ByteBuffer> optBB = this.reader.read(
+            Optional<InputStream> optIn = this.reader.open(
                 className.replace('.', '/') + ".class");
-            if (optBB.isPresent())
+            if (optIn.isPresent())
             {
-                clsBytes = optBB.get();
-                cls = defineClass(className, clsBytes, (CodeSource) null);
+                byte[] buffer = classBuffers.get();
+                classBuffers.set(null);
+                if (buffer == null)
+                {
+                    buffer = new byte[INITIAL_CLASS_BUFFER];
+                    allocatedBytes.add(buffer.length);
+                }
+                try (InputStream in = optIn.get())
+                {
+                    int length = 0;
+                    while (true)
+                    {
+                        if (length == buffer.length)
+                        {
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                            allocatedBytes.add(buffer.length);
+                        }
+                        int read = in.read(buffer, length, buffer.length - length);
+                        if (read < 0)
+                        {
+                            break;
+                        }
+                        length += read;
+                    }
+                    cls = defineClass(className, buffer, 0, length, (CodeSource) null);
+                    definedClasses.increment();
+                    definedBytes.add(length);
+                    ModuleClassList classList = atomosRuntime.getClassList();
+                    if (classList != null)
+                    {
+                        classList.record(className);
+                    }
+                }
+                finally
+                {
+                    if (buffer.length <= MAX_POOLED_CLASS_BUFFER)
+                    {
+                        classBuffers.set(buffer);
+                    }
+                }
             }
         }
         catch (IOException e)
         {
             throw new LinkageError("Could not find class: " + className, e);
         }
-        finally
-        {
-            if (clsBytes != null)
-                reader.release(clsBytes);
-        }
 
         if (cls == null)
         {
@@ -280,22 +409,19 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
             cls = findLoadedClass(className);
             if (cls == null)
             {
-                // otherwise; check ModuleDescriptor.pacakges to see if it contains the package for the requested class
-                //   if so do the same thing as findClass(String, String)
-                String pkg = className.substring(0, className.lastIndexOf('.'));
-                if (module.get().getDescriptor().packages().contains(pkg))
+                // otherwise; a single lookup finds the loader for the package of the requested class
+                int lastDot = className.lastIndexOf('.');
+                ClassLoader l = lastDot < 0 ? null
+                    : packageLoaders.get(className.substring(0, lastDot));
+                if (l == this)
                 {
-                    cls = findClass(module.get().getName(), className);
+                    // a local package; do the same thing as findClass(String, String)
+                    cls = findClass(null, className);
                 }
-                else
+                else if (l != null)
                 {
-                    // otherwise; check for packages this module can read from and if you have another loader for the package
-                    //   Then call the other loader.loadClass(className)
-                    ClassLoader l = edges.get(pkg);
-                    if (l != null)
-                    {
-                        cls = l.loadClass(className);
-                    }
+                    // a package this module can read from another loader
+                    cls = l.loadClass(className);
                 }
             }
             if (cls == null)
@@ -308,9 +434,98 @@ public final class ModuleConnectLoader extends SecureClassLoader implements Bund
                 resolveClass(cls);
             }
         }
+        // a local class may have been preloaded so check the defining loader
+        if (!activationTriggered && cls.getClassLoader() == this
+            && atomosRuntime.isLazyActivation() && preloading.get() == null)
+        {
+            // activate outside of the class loading lock
+            triggerActivation();
+        }
         return cls;
     }
 
+    /**
+     * Defines the specified local class ahead of time without triggering lazy activation.
+     * @return true if the class was defined
+     */
+    boolean preloadClass(String className)
+    {
+        synchronized (getClassLoadingLock(className))
+        {
+            if (findLoadedClass(className) != null)
+            {
+                return false;
+            }
+            preloading.set(Boolean.TRUE);
+            try
+            {
+                return findClass(null, className) != null;
+            }
+            catch (LinkageError e)
+            {
+                atomosRuntime.debug("Failed to preload %s: %s", className, e);
+                return false;
+            }
+            finally
+            {
+                preloading.remove();
+            }
+        }
+    }
+
+    /**
+     * Arms the lazy activation trigger again after the bundle of this loader is
+     * started with its activation policy.
+     */
+    void resetActivationTrigger()
+    {
+        activationTriggered = false;
+    }
+
+    Set<String> getModulePackages()
+    {
+        return reference.descriptor().packages();
+    }
+
+    /**
+     * Activates the bundle of this loader if it is waiting for lazy activation.
+     */
+    private void triggerActivation()
+    {
+        // checked once; a lazy start requested later resets the trigger
+        activationTriggered = true;
+        Bundle b = getBundle();
+        if (b != null && b.getState() == Bundle.STARTING)
+        {
+            try
+            {
+                // transient so the persistent lazy start setting is kept
+                b.start(Bundle.START_TRANSIENT);
+            }
+            catch (BundleException e)
+            {
+                atomosRuntime.debug("Failed to lazily activate %s: %s", b, e);
+            }
+        }
+    }
+
+    /**
+     * Reports the number of classes defined by module connect loaders along with
+     * the class bytes read and the buffer bytes allocated to read them.
+     */
+    static void debugDefineStats(AtomosRuntimeModules atomosRuntime)
+    {
+        if (atomosRuntime.isDebug())
+        {
+            long classes = definedClasses.sum();
+            long allocated = allocatedBytes.sum();
+            atomosRuntime.debug(
+                "Defined %s classes from %s bytes allocating %s buffer bytes (%s per class)",
+                classes, definedBytes.sum(), allocated,
+                classes == 0 ? 0 : allocated / classes);
+        }
+    }
+
     @Override
     protected PermissionCollection getPermissions(CodeSource cs)
     {
@@ -0,0 +1,247 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.module.ModuleReference;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosStorage;
+
+/**
+ * Persists the headers generated for modules between launches in the
+ * framework storage area.  Each entry is keyed by the module name, the
+ * module version and a hash of the module location.  The location hash
+ * includes the size and last modified time of the module file, so a
+ * module that changes gets a new key and its headers are generated again.
+ */
+final class ModuleHeaderCache
+{
+    private final static int VERSION = 1;
+    static final String ATOMOS_MODULE_HEADERS = "atomosModuleHeaders.data";
+    private static final String JRT_SCHEME = "jrt";
+    private static final String FILE_SCHEME = "file";
+    // a key length and a header count
+    private static final int ENTRY_MIN_SIZE = 2 * 4;
+    // a name length and a value length
+    private static final int HEADER_MIN_SIZE = 2 * 4;
+
+    private final AtomosRuntimeModules atomosRuntime;
+    private volatile File root;
+    // entries read from the previous launch
+    private volatile Map<String, Map<String, String>> loaded = Collections.emptyMap();
+    // entries looked up or generated during this launch; only these are saved
+    private final Map<String, Map<String, String>> current = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    ModuleHeaderCache(AtomosRuntimeModules atomosRuntime)
+    {
+        this.atomosRuntime = atomosRuntime;
+    }
+
+    void load(File root)
+    {
+        this.root = root;
+        try
+        {
+            // counts and lengths are checked against the bytes left so a damaged
+            // file cannot make the reader allocate more than the file holds
+            byte[] bytes = Files.readAllBytes(
+                new File(root, ATOMOS_MODULE_HEADERS).toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int persistentVersion = in.readInt();
+            if (persistentVersion != VERSION)
+            {
+                atomosRuntime.debug("Ignoring %s with version %s in %s",
+                    ATOMOS_MODULE_HEADERS, persistentVersion, root);
+                return;
+            }
+            int numEntries = readCount(in, ENTRY_MIN_SIZE);
+            Map<String, Map<String, String>> result = new HashMap<>(numEntries * 2);
+            for (int i = 0; i < numEntries; i++)
+            {
+                String key = readString(in);
+                int numHeaders = readCount(in, HEADER_MIN_SIZE);
+                Map<String, String> headers = new HashMap<>(numHeaders * 2);
+                for (int j = 0; j < numHeaders; j++)
+                {
+                    headers.put(readString(in), readString(in));
+                }
+                result.put(key, Collections.unmodifiableMap(headers));
+            }
+            loaded = result;
+            atomosRuntime.debug("Found %s with %s entries in %s", ATOMOS_MODULE_HEADERS,
+                numEntries, root);
+        }
+        catch (NoSuchFileException e)
+        {
+            // ignore no file
+            atomosRuntime.debug("No %s found in %s", ATOMOS_MODULE_HEADERS, root);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // a damaged cache only means the headers get generated again
+            atomosRuntime.debug("Ignoring damaged %s in %s: %s", ATOMOS_MODULE_HEADERS,
+                root, e);
+        }
+    }
+
+    /**
+     * Returns the key for the headers of the specified module.
+     * @param reference the module reference
+     * @param lazy true if the headers include the lazy activation policy
+     * @return the key or {@code null} if the headers of the module cannot be cached
+     */
+    static String getKey(ModuleReference reference, boolean lazy)
+    {
+        URI location = reference.location().orElse(null);
+        if (location == null)
+        {
+            return null;
+        }
+        long hash = location.toString().hashCode();
+        if (JRT_SCHEME.equals(location.getScheme()))
+        {
+            // a system module only changes with the runtime
+            hash = 31 * hash + Runtime.version().toString().hashCode();
+        }
+        else if (FILE_SCHEME.equals(location.getScheme()))
+        {
+            File file = new File(location);
+            if (file.isDirectory())
+            {
+                // an exploded module; the descriptor and manifest are the inputs
+                hash = 31 * hash + new File(file, "module-info.class").lastModified();
+                file = new File(file, "META-INF/MANIFEST.MF");
+            }
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        else
+        {
+            return null;
+        }
+        hash = 31 * hash + (lazy ? 1 : 0);
+        return reference.descriptor().toNameAndVersion() + '@' + Long.toHexString(hash);
+    }
+
+    Map<String, String> get(String key)
+    {
+        Map<String, String> cached = loaded.get(key);
+        if (cached != null)
+        {
+            current.put(key, cached);
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String key, Map<String, String> headers)
+    {
+        current.put(key, Collections.unmodifiableMap(new HashMap<>(headers)));
+    }
+
+    /**
+     * Writes the headers looked up or generated during this launch to the
+     * framework storage area.
+     */
+    void save()
+    {
+        File current = root;
+        if (current == null)
+        {
+            return;
+        }
+        atomosRuntime.debug("Saving %s with %s entries (%s hits, %s misses)",
+            ATOMOS_MODULE_HEADERS, this.current.size(), hits.get(), misses.get());
+        // write a temporary file first so a failed write never leaves a partial cache
+        File tmp = new File(current, ATOMOS_MODULE_HEADERS + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                out.writeInt(VERSION);
+                Map<String, Map<String, String>> entries = new HashMap<>(this.current);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Map<String, String>> entry : entries.entrySet())
+                {
+                    writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (Map.Entry<String, String> header : entry.getValue().entrySet())
+                    {
+                        writeString(out, header.getKey());
+                        writeString(out, header.getValue());
+                    }
+                }
+            }
+            AtomosStorage.replace(tmp.toPath(),
+                new File(current, ATOMOS_MODULE_HEADERS).toPath());
+        }
+        catch (IOException e)
+        {
+            atomosRuntime.debug("Failed to save %s in %s: %s", ATOMOS_MODULE_HEADERS,
+                current, e);
+        }
+    }
+
+    // headers such as Export-Package may be longer than writeUTF allows
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[readCount(in, 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a count of records and checks the remaining bytes can hold them.
+     * @param in the input
+     * @param minSize the minimum size of a record in bytes
+     * @return the count
+     * @throws IOException if the count is negative or too large for the input
+     */
+    private static int readCount(DataInputStream in, int minSize) throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || (long) count * minSize > in.available())
+        {
+            throw new IOException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import java.io.IOException;
+import java.lang.module.ModuleReader;
+import java.lang.module.ModuleReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares one open {@link ModuleReader} per {@link ModuleReference}.  Each
+ * {@link #acquire(ModuleReference) acquire} must be paired with a
+ * {@link #release(ModuleReference) release}; the reader is closed once the
+ * last user releases it.
+ */
+final class ModuleReaderPool
+{
+    private static final class SharedReader
+    {
+        final ModuleReader reader;
+        int count = 0;
+
+        SharedReader(ModuleReader reader)
+        {
+            this.reader = reader;
+        }
+    }
+
+    private final Map<ModuleReference, SharedReader> readers = new HashMap<>();
+
+    synchronized ModuleReader acquire(ModuleReference reference) throws IOException
+    {
+        SharedReader shared = readers.get(reference);
+        if (shared == null)
+        {
+            shared = new SharedReader(reference.open());
+            readers.put(reference, shared);
+        }
+        shared.count++;
+        return shared.reader;
+    }
+
+    synchronized void release(ModuleReference reference) throws IOException
+    {
+        SharedReader shared = readers.get(reference);
+        if (shared != null && --shared.count == 0)
+        {
+            readers.remove(reference);
+            shared.reader.close();
+        }
+    }
+}
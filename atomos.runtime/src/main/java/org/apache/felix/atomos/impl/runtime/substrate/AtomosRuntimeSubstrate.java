@@ -14,10 +14,8 @@
 
 package org.apache.felix.atomos.impl.runtime.substrate;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -33,7 +31,12 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache;
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.ContentKind;
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.DiscoveredContent;
 import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
+import org.apache.felix.atomos.impl.runtime.base.VisibilityCache;
 import org.apache.felix.atomos.runtime.AtomosContent;
 import org.apache.felix.atomos.runtime.AtomosLayer;
 import org.osgi.framework.Bundle;
@@ -62,7 +65,6 @@ import sun.misc.Signal;
  */
 public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
 {
-    private final String ATOMOS_BUNDLE = "ATOMOS_BUNDLE";
     private final File substrateLibDir;
     private final AtomosLayerSubstrate bootLayer;
     private final List<SubstrateBundleIndexInfo> indexBundles;
@@ -77,13 +79,16 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
         final String index;
         final String bsn;
         final Version version;
-        final List<String> entries;
+        final List<String> packages;
+        final SubstrateBundleIndex.Names entries;
 
-        SubstrateBundleIndexInfo(String index, String bsn, Version version, List<String> entries)
+        SubstrateBundleIndexInfo(String index, String bsn, Version version,
+            List<String> packages, SubstrateBundleIndex.Names entries)
         {
             this.index = index;
             this.bsn = bsn;
             this.version = version;
+            this.packages = packages;
             this.entries = entries;
         }
 
@@ -91,60 +96,41 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
 
     public AtomosRuntimeSubstrate(File substrateLibDir)
     {
+        this(substrateLibDir, null);
+    }
+
+    public AtomosRuntimeSubstrate(File substrateLibDir, Map<String, String> configuration)
+    {
+        this(substrateLibDir, substrateLibDir == null
+            ? AtomosRuntimeSubstrate.class.getResource(ATOMOS_BUNDLES_INDEX)
+            : null, configuration);
+    }
+
+    /**
+     * Creates a runtime for the bundles of a substrate_lib folder or a bundle index.
+     * @param substrateLibDir the substrate_lib folder, or {@code null} to use the index
+     * @param index the bundle index, or {@code null} to find the substrate_lib folder
+     * @param configuration the framework configuration, may be {@code null}
+     */
+    AtomosRuntimeSubstrate(File substrateLibDir, URL index,
+        Map<String, String> configuration)
+    {
+        super(configuration);
         List<SubstrateBundleIndexInfo> tmpIndexBundles = Collections.emptyList();
         if (substrateLibDir == null)
         {
-            URL index = getClass().getResource(ATOMOS_BUNDLES_INDEX);
             if (index != null)
             {
-                tmpIndexBundles = new ArrayList<>();
-                try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(index.openStream())))
+                try
                 {
-                    String line;
-                    String currentIndex = null;
-                    String currentBSN = null;
-                    Version currentVersion = null;
-                    List<String> currentPaths = null;
-                    while ((line = reader.readLine()) != null)
-                    {
-                        if (ATOMOS_BUNDLE.equals(line))
-                        {
-                            if (currentIndex != null)
-                            {
-                                tmpIndexBundles.add(
-                                    new SubstrateBundleIndexInfo(currentIndex, currentBSN,
-                                        currentVersion, currentPaths));
-                            }
-                            currentIndex = null;
-                            currentBSN = null;
-                            currentVersion = null;
-                            currentPaths = new ArrayList<>();
-                        }
-                        else
-                        {
-                            if (currentIndex == null)
-                            {
-                                currentIndex = line;
-                            }
-                            else if (currentBSN == null)
-                            {
-                                currentBSN = line;
-                            }
-                            else if (currentVersion == null)
-                            {
-                                currentVersion = Version.valueOf(line);
-                            }
-                            else
-                            {
-                                currentPaths.add(line);
-                            }
-                        }
-                    }
-                    if (currentIndex != null)
+                    SubstrateBundleIndex bundleIndex = SubstrateBundleIndex.read(index);
+                    tmpIndexBundles = new ArrayList<>(bundleIndex.getNumBundles());
+                    for (int i = 0; i < bundleIndex.getNumBundles(); i++)
                     {
-                        tmpIndexBundles.add(new SubstrateBundleIndexInfo(currentIndex,
-                            currentBSN, currentVersion, currentPaths));
+                        tmpIndexBundles.add(new SubstrateBundleIndexInfo(
+                            bundleIndex.getIndex(i), bundleIndex.getSymbolicName(i),
+                            bundleIndex.getVersion(i), bundleIndex.getPackages(i),
+                            bundleIndex.getEntries(i)));
                     }
                 }
                 catch (IOException e)
@@ -179,7 +165,7 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
     private AtomosLayerSubstrate createBootLayer()
     {
         lockWrite();
-        try
+        try (Span create = getTimeline().begin("layer", "boot"))
         {
             AtomosLayerSubstrate result = new AtomosLayerSubstrate(
                 Collections.emptyList(), nextLayerId.getAndIncrement(), "boot",
@@ -215,9 +201,9 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
 
     @Override
     protected void filterBasedOnReadEdges(AtomosContent atomosContent,
-        Collection<BundleCapability> candidates)
+        Collection<BundleCapability> candidates, VisibilityCache visibility)
     {
-        filterNotVisible(atomosContent, candidates);
+        filterNotVisible(atomosContent, candidates, visibility);
     }
 
     public class AtomosLayerSubstrate extends AtomosLayerBase implements SynchronousBundleListener
@@ -229,7 +215,10 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
         {
             super(parents, id, name, loaderType, paths);
             Set<AtomosContentBase> foundBundles = new HashSet<>();
-            findSubstrateAtomosBundles(foundBundles);
+            try (Span discovery = getTimeline().begin("discovery", "substrate " + name))
+            {
+                findSubstrateAtomosBundles(foundBundles);
+            }
             atomosContents = Collections.unmodifiableSet(foundBundles);
         }
 
@@ -276,52 +265,64 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
                             location = getName() + ":" + location;
                         }
                     }
-                    bundles.add(new AtomosContentSubstrate(location, b.bsn, b.version,
-                        connectContent));
+                    AtomosContentSubstrate content = new AtomosContentSubstrate(location,
+                        b.bsn, b.version, connectContent);
+                    // the index has the complete packages so no bundle listener is needed
+                    for (String pkg : b.packages)
+                    {
+                        packageToAtomosContent.putIfAbsent(pkg, content);
+                    }
+                    bundles.add(content);
                 });
             }
             else
             {
+                AtomosDiscoveryCache discoveryCache = getDiscoveryCache();
                 for (File f : substrateLibDir.listFiles())
                 {
                     if (f.isFile())
                     {
-                        try (JarFile jar = new JarFile(f))
+                        try
                         {
-                            Attributes headers = jar.getManifest().getMainAttributes();
-                            String symbolicName = headers.getValue(
-                                Constants.BUNDLE_SYMBOLICNAME);
-                            if (symbolicName != null)
+                            String key = f.getPath();
+                            DiscoveredContent cached = discoveryCache.get(key, f);
+                            if (cached != null)
                             {
-                                int semiColon = symbolicName.indexOf(';');
-                                if (semiColon != -1)
+                                if (cached.getKind() != ContentKind.NONE)
                                 {
-                                    symbolicName = symbolicName.substring(0, semiColon);
+                                    bundles.add(newSubstrateContent(f,
+                                        cached.getLocation(), cached.getSymbolicName(),
+                                        cached.getVersion()));
                                 }
-                                symbolicName = symbolicName.trim();
-
-                                ConnectContent connectContent = new SubstrateJarConnectContent(
-                                    f.getName(), AtomosRuntimeSubstrate.this);
-                                connectContent.open();
-                                String location;
-                                if (connectContent.getEntry(
-                                    "META-INF/services/org.osgi.framework.launch.FrameworkFactory").isPresent())
+                                continue;
+                            }
+                            try (JarFile jar = new JarFile(f))
+                            {
+                                Attributes headers = jar.getManifest().getMainAttributes();
+                                String symbolicName = headers.getValue(
+                                    Constants.BUNDLE_SYMBOLICNAME);
+                                if (symbolicName != null)
                                 {
-                                    location = Constants.SYSTEM_BUNDLE_LOCATION;
+                                    int semiColon = symbolicName.indexOf(';');
+                                    if (semiColon != -1)
+                                    {
+                                        symbolicName = symbolicName.substring(0, semiColon);
+                                    }
+                                    symbolicName = symbolicName.trim();
+                                    Version version = Version.parseVersion(
+                                        headers.getValue(Constants.BUNDLE_VERSION));
+
+                                    AtomosContentBase bundle = newSubstrateContent(f, null,
+                                        symbolicName, version);
+                                    discoveryCache.put(key, f, ContentKind.JAR,
+                                        symbolicName, version, bundle.getAtomosLocation());
+                                    bundles.add(bundle);
                                 }
                                 else
                                 {
-                                    location = f.getName();
-                                    if (!getName().isEmpty())
-                                    {
-                                        location = getName() + ":" + location;
-                                    }
+                                    discoveryCache.put(key, f, ContentKind.NONE, null, null,
+                                        null);
                                 }
-                                Version version = Version.parseVersion(
-                                    headers.getValue(Constants.BUNDLE_VERSION));
-                                AtomosContentBase bundle = new AtomosContentSubstrate(
-                                    location, symbolicName, version, connectContent);
-                                bundles.add(bundle);
                             }
                         }
                         catch (IOException e)
@@ -333,6 +334,41 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
             }
         }
 
+        /**
+         * Creates the Atomos content for a bundle JAR in the substrate_lib folder.
+         * @param f the bundle JAR
+         * @param location the Atomos location, or {@code null} if it must be determined
+         * @param symbolicName the bundle symbolic name
+         * @param version the bundle version
+         * @return the Atomos content
+         * @throws IOException if an error occurred opening the content
+         */
+        private AtomosContentBase newSubstrateContent(File f, String location,
+            String symbolicName, Version version) throws IOException
+        {
+            ConnectContent connectContent = new SubstrateJarConnectContent(f.getName(),
+                AtomosRuntimeSubstrate.this);
+            connectContent.open();
+            if (location == null)
+            {
+                if (connectContent.getEntry(
+                    "META-INF/services/org.osgi.framework.launch.FrameworkFactory").isPresent())
+                {
+                    location = Constants.SYSTEM_BUNDLE_LOCATION;
+                }
+                else
+                {
+                    location = f.getName();
+                    if (!getName().isEmpty())
+                    {
+                        location = getName() + ":" + location;
+                    }
+                }
+            }
+            return new AtomosContentSubstrate(location, symbolicName, version,
+                connectContent);
+        }
+
         /**
          * Atomos content discovered in a substrate image.  The key is this content itself
          * which is used to lookup the content based on package name.
@@ -368,19 +404,31 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
                 b.getLocation());
             if (atomosContent != null)
             {
+                boolean changed = false;
                 BundleRevision r = b.adapt(BundleRevision.class);
-                r.getDeclaredCapabilities(PackageNamespace.PACKAGE_NAMESPACE).forEach(
-                    (p) -> packageToAtomosContent.putIfAbsent((String) p.getAttributes().get(
-                        PackageNamespace.PACKAGE_NAMESPACE), atomosContent));
+                for (BundleCapability p : r.getDeclaredCapabilities(
+                    PackageNamespace.PACKAGE_NAMESPACE))
+                {
+                    String pkgName = (String) p.getAttributes().get(
+                        PackageNamespace.PACKAGE_NAMESPACE);
+                    changed |= packageToAtomosContent.putIfAbsent(pkgName,
+                        atomosContent) == null;
+                }
                 String privatePackages = b.getHeaders("").get("Private-Package");
                 if (privatePackages != null)
                 {
                     for (String pkgName : privatePackages.split(","))
                     {
                         pkgName = pkgName.trim();
-                        packageToAtomosContent.put(pkgName, atomosContent);
+                        changed |= packageToAtomosContent.put(pkgName,
+                            atomosContent) != atomosContent;
                     }
                 }
+                if (changed)
+                {
+                    // the new packages can change the key of cached classes
+                    invalidateAtomosKeys();
+                }
             }
         }
     }
@@ -412,10 +460,14 @@ public class AtomosRuntimeSubstrate extends AtomosRuntimeBase
     @Override
     protected void start(BundleContext bc) throws BundleException
     {
-        bc.addBundleListener(bootLayer);
-        for (Bundle b : bc.getBundles())
+        if (indexBundles.stream().allMatch((b) -> b.packages.isEmpty()))
         {
-            bootLayer.addPackages(b);
+            // without packages in the index they are only known from the installed bundles
+            bc.addBundleListener(bootLayer);
+            for (Bundle b : bc.getBundles())
+            {
+                bootLayer.addPackages(b);
+            }
         }
         super.start(bc);
     }
@@ -0,0 +1,270 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.substrate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.osgi.framework.Version;
+
+/**
+ * Reads the binary {@code bundles.index} generated for a substrate native image.
+ * The index is accessed in place; strings are only decoded when used so loading
+ * the index does not scale with the number of bundle entries.
+ * <p>
+ * The index starts with a header of int fields: magic, version, number of
+ * strings, number of bundles and number of refs.  It is followed by a table of
+ * int offsets into the UTF-8 string data; the strings are sorted so a name is
+ * found with a binary search.  Each bundle has a record of int fields: index,
+ * symbolic name, version, start and number of packages, start and number of
+ * entries and start of the entry metadata.  The packages and entries are string
+ * indexes in a table of int refs; the entries of a bundle are sorted.  The
+ * metadata table has the long size and last modified time of each entry.
+ */
+final class SubstrateBundleIndex
+{
+    static final int MAGIC = 0x41544f4d;
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int BUNDLE_RECORD_SIZE = 32;
+    private static final int METADATA_RECORD_SIZE = 16;
+
+    private final ByteBuffer index;
+    private final int numStrings;
+    private final int numBundles;
+    private final int stringOffsets;
+    private final int stringData;
+    private final int bundles;
+    private final int refs;
+    private final int metadata;
+    private final String[] strings;
+
+    private SubstrateBundleIndex(ByteBuffer index) throws IOException
+    {
+        if (index.limit() < HEADER_SIZE || index.getInt(0) != MAGIC)
+        {
+            throw new IOException("Not a binary Atomos bundles index.");
+        }
+        int version = index.getInt(4);
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported Atomos bundles index version: " + version);
+        }
+        this.index = index;
+        numStrings = index.getInt(8);
+        numBundles = index.getInt(12);
+        stringOffsets = HEADER_SIZE;
+        stringData = stringOffsets + (numStrings + 1) * 4;
+        bundles = stringData + index.getInt(stringOffsets + numStrings * 4);
+        refs = bundles + numBundles * BUNDLE_RECORD_SIZE;
+        metadata = refs + index.getInt(16) * 4;
+        strings = new String[numStrings];
+    }
+
+    static SubstrateBundleIndex read(URL url) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = url.openStream())
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new SubstrateBundleIndex(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    int getNumBundles()
+    {
+        return numBundles;
+    }
+
+    String getIndex(int bundle)
+    {
+        return getString(index.getInt(record(bundle)));
+    }
+
+    String getSymbolicName(int bundle)
+    {
+        return getString(index.getInt(record(bundle) + 4));
+    }
+
+    Version getVersion(int bundle)
+    {
+        return Version.valueOf(getString(index.getInt(record(bundle) + 8)));
+    }
+
+    List<String> getPackages(int bundle)
+    {
+        int record = record(bundle);
+        return new Names(index.getInt(record + 12), index.getInt(record + 16), -1);
+    }
+
+    Names getEntries(int bundle)
+    {
+        int record = record(bundle);
+        return new Names(index.getInt(record + 20), index.getInt(record + 24),
+            index.getInt(record + 28));
+    }
+
+    private int record(int bundle)
+    {
+        return bundles + bundle * BUNDLE_RECORD_SIZE;
+    }
+
+    private int getRef(int ref)
+    {
+        return index.getInt(refs + ref * 4);
+    }
+
+    private String getString(int i)
+    {
+        String result = strings[i];
+        if (result == null)
+        {
+            int start = index.getInt(stringOffsets + i * 4);
+            int end = index.getInt(stringOffsets + (i + 1) * 4);
+            result = new String(index.array(), index.arrayOffset() + stringData + start,
+                end - start, StandardCharsets.UTF_8);
+            strings[i] = result;
+        }
+        return result;
+    }
+
+    private int findString(String name)
+    {
+        int low = 0;
+        int high = numStrings - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int compare = getString(mid).compareTo(name);
+            if (compare < 0)
+            {
+                low = mid + 1;
+            }
+            else if (compare > 0)
+            {
+                high = mid - 1;
+            }
+            else
+            {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A sorted list of names backed by the refs table of the index.
+     */
+    final class Names extends AbstractList<String> implements RandomAccess
+    {
+        private final int start;
+        private final int size;
+        // the first metadata record of the names, -1 if there is no metadata
+        private final int metadataStart;
+
+        Names(int start, int size, int metadataStart)
+        {
+            this.start = start;
+            this.size = size;
+            this.metadataStart = metadataStart;
+        }
+
+        long getSize(int i)
+        {
+            return index.getLong(metadata + (metadataStart + i) * METADATA_RECORD_SIZE);
+        }
+
+        long getLastModified(int i)
+        {
+            return index.getLong(
+                metadata + (metadataStart + i) * METADATA_RECORD_SIZE + 8);
+        }
+
+        @Override
+        public String get(int i)
+        {
+            if (i < 0 || i >= size)
+            {
+                throw new IndexOutOfBoundsException(Integer.toString(i));
+            }
+            return getString(getRef(start + i));
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return indexOf(o) >= 0;
+        }
+
+        @Override
+        public int indexOf(Object o)
+        {
+            if (!(o instanceof String))
+            {
+                return -1;
+            }
+            int id = findString((String) o);
+            if (id < 0)
+            {
+                return -1;
+            }
+            // the string indexes of the names are sorted
+            int low = start;
+            int high = start + size - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int ref = getRef(mid);
+                if (ref < id)
+                {
+                    low = mid + 1;
+                }
+                else if (ref > id)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return mid - start;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object o)
+        {
+            // the names are unique
+            return indexOf(o);
+        }
+    }
+}
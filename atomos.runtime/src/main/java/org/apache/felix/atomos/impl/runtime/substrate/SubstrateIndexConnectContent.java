@@ -16,8 +16,6 @@ package org.apache.felix.atomos.impl.runtime.substrate;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -30,11 +28,15 @@ public class SubstrateIndexConnectContent implements ConnectContent
     {
         private final String name;
         private final URL resource;
+        private final long size;
+        private final long lastModified;
 
-        URLConnectEntry(String name, URL resource)
+        URLConnectEntry(String name, URL resource, long size, long lastModified)
         {
             this.name = name;
             this.resource = resource;
+            this.size = size;
+            this.lastModified = lastModified;
         }
 
         @Override
@@ -46,27 +48,14 @@ public class SubstrateIndexConnectContent implements ConnectContent
         @Override
         public long getContentLength()
         {
-            try
-            {
-                return resource.openConnection().getContentLengthLong();
-            }
-            catch (IOException e)
-            {
-                return -1;
-            }
+            // recorded in the index when the image was built
+            return size;
         }
 
         @Override
         public long getLastModified()
         {
-            try
-            {
-                return resource.openConnection().getDate();
-            }
-            catch (IOException e)
-            {
-                return 0;
-            }
+            return lastModified;
         }
 
         @Override
@@ -78,12 +67,18 @@ public class SubstrateIndexConnectContent implements ConnectContent
     }
 
     final String index;
-    final List<String> entries;
+    // sorted names with a binary search contains
+    final SubstrateBundleIndex.Names entries;
+    private final String prefix;
+    // the resource URLs of the entries, found the first time an entry is used
+    private final URL[] resources;
 
-    SubstrateIndexConnectContent(String index, List<String> entries)
+    SubstrateIndexConnectContent(String index, SubstrateBundleIndex.Names entries)
     {
         this.index = index;
-        this.entries = Collections.unmodifiableList(entries);
+        this.entries = entries;
+        this.prefix = AtomosRuntimeBase.ATOMOS_BUNDLES + index + '/';
+        this.resources = new URL[entries.size()];
     }
 
     @Override
@@ -101,13 +96,19 @@ public class SubstrateIndexConnectContent implements ConnectContent
     @Override
     public Optional<ConnectEntry> getEntry(String name)
     {
-        if (entries.contains(name))
+        int i = entries.indexOf(name);
+        if (i >= 0)
         {
-            URL resource = getClass().getResource(
-                AtomosRuntimeBase.ATOMOS_BUNDLES + index + '/' + name);
+            URL resource = resources[i];
+            if (resource == null)
+            {
+                resource = getClass().getResource(prefix + name);
+                resources[i] = resource;
+            }
             if (resource != null)
             {
-                return Optional.of(new URLConnectEntry(name, resource));
+                return Optional.of(new URLConnectEntry(name, resource,
+                    entries.getSize(i), entries.getLastModified(i)));
             }
         }
         return Optional.empty();
@@ -16,13 +16,12 @@ package org.apache.felix.atomos.impl.runtime.substrate;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import org.apache.felix.atomos.impl.runtime.base.JarEntryIndex;
 import org.osgi.framework.connect.ConnectContent;
 
 public class SubstrateJarConnectContent implements ConnectContent
@@ -30,6 +29,7 @@ public class SubstrateJarConnectContent implements ConnectContent
     private final AtomosRuntimeSubstrate runtime;
     private final String fileName;
     private volatile ZipFile zipFile;
+    private volatile JarEntryIndex index;
 
     public SubstrateJarConnectContent(String fileName, AtomosRuntimeSubstrate runtime)
     {
@@ -43,7 +43,9 @@ public class SubstrateJarConnectContent implements ConnectContent
         ZipFile current = zipFile;
         if (current == null)
         {
-            zipFile = new ZipFile(new File(runtime.getSubstrateLibDir(), fileName));
+            current = new ZipFile(new File(runtime.getSubstrateLibDir(), fileName));
+            index = new JarEntryIndex(current);
+            zipFile = current;
         }
     }
 
@@ -54,6 +56,7 @@ public class SubstrateJarConnectContent implements ConnectContent
         if (current != null)
         {
             zipFile = null;
+            index = null;
             current.close();
         }
     }
@@ -67,28 +70,13 @@ public class SubstrateJarConnectContent implements ConnectContent
     @Override
     public Iterable<String> getEntries() throws IOException
     {
-        return () -> new Iterator<String>()
-        {
-            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-
-            @Override
-            public boolean hasNext()
-            {
-                return entries.hasMoreElements();
-            }
-
-            @Override
-            public String next()
-            {
-                return entries.nextElement().getName();
-            }
-        };
+        return index.getNames();
     }
 
     @Override
     public Optional<ConnectEntry> getEntry(String name)
     {
-        ZipEntry entry = zipFile.getEntry(name);
+        ZipEntry entry = index.getEntry(name);
         if (entry != null)
         {
             return Optional.of(new JarConnectEntry(entry));
@@ -120,7 +108,7 @@ public class SubstrateJarConnectContent implements ConnectContent
         @Override
         public InputStream getInputStream() throws IOException
         {
-            return zipFile.getInputStream(entry);
+            return index.getInputStream(entry);
         }
 
         @Override
@@ -131,7 +131,9 @@ import org.osgi.framework.launch.FrameworkFactory;
  * case the {@link AtomosContent#install(String)} method can be used to
  * selectively install Atomos contents. If {@link #ATOMOS_CONTENT_START
  * atomos.content.start} is set to <code>false</code> in the framework
- * configuration then the Atomos bundles will not be started by default. The
+ * configuration then the Atomos bundles will not be started by default. If
+ * {@link #ATOMOS_CONTENT_LAZY atomos.content.lazy} is set to <code>true</code>
+ * then the Atomos bundles are started with their activation policy. The
  * system.bundle of the initialized framework will also have an AtomosRuntime
  * service registered with its bundle context.
  */
@@ -157,6 +159,25 @@ public interface AtomosRuntime
      * will start all discovered Atomos content that are installed as bundles.
      */
     String ATOMOS_CONTENT_START = "atomos.content.start";
+    /**
+     * Framework launching property specifying if the Atomos contents are
+     * installed and started in parallel. Default is false, which will install
+     * and start the Atomos contents one after another. When true the contents of
+     * a layer are installed in parallel and the bundles are then started in
+     * parallel, in waves that start the providers of a bundle before the bundle.
+     */
+    String ATOMOS_CONTENT_PARALLEL = "atomos.content.parallel";
+    /**
+     * Framework launching property specifying if the Atomos contents installed
+     * as connected bundles are started lazily. Default is false, which will
+     * activate all started bundles eagerly. When true, modules loaded by a
+     * layer using the {@link LoaderType#OSGI OSGI} loader type are given a lazy
+     * activation policy and are activated the first time one of their classes
+     * is loaded. Other contents are loaded by class loaders that cannot trigger
+     * their activation, so they are still activated eagerly. A warning is
+     * printed when no content of the boot layer can be activated lazily.
+     */
+    String ATOMOS_CONTENT_LAZY = "atomos.content.lazy";
 
     /**
      * Returns the Atomos content that is connected with the specified bundle location.
@@ -209,4 +230,19 @@ public interface AtomosRuntime
     {
         return AtomosRuntimeBase.newAtomosRuntime();
     }
+
+    /**
+     * Creates a new AtomosRuntime for a framework with the specified configuration.
+     * The Atomos contents are discovered when the runtime is created, so the
+     * {@link Constants#FRAMEWORK_STORAGE storage} directory of the configuration
+     * is used to cache the discovered contents between launches.
+     * 
+     * @param frameworkConfig the framework configuration, may be {@code null}
+     * @return a new AtomosRuntime.
+     * @see #newAtomosRuntime()
+     */
+    static AtomosRuntime newAtomosRuntime(Map<String, String> frameworkConfig)
+    {
+        return AtomosRuntimeBase.newAtomosRuntime(frameworkConfig);
+    }
 }
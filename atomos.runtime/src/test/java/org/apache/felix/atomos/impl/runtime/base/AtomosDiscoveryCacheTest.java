@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.ContentKind;
+import org.apache.felix.atomos.impl.runtime.base.AtomosDiscoveryCache.DiscoveredContent;
+import org.apache.felix.atomos.runtime.AtomosRuntime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+public class AtomosDiscoveryCacheTest
+{
+    private static final String KEY = "test.key";
+
+    private final AtomosRuntimeBase runtime = (AtomosRuntimeBase) AtomosRuntime
+        .newAtomosRuntime();
+
+    private File createManifest(Path dir) throws IOException
+    {
+        Path manifest = dir.resolve("bundle/META-INF/MANIFEST.MF");
+        Files.createDirectories(manifest.getParent());
+        Files.write(manifest, "Manifest-Version: 1.0\n".getBytes());
+        return manifest.toFile();
+    }
+
+    private void put(AtomosDiscoveryCache cache, File manifest)
+    {
+        cache.put(KEY, manifest, ContentKind.DIRECTORY, "test.bundle",
+            Version.parseVersion("1.0"), "test.location");
+    }
+
+    @Test
+    void testSaveAndLoad(@TempDir Path root, @TempDir Path content) throws IOException
+    {
+        File manifest = createManifest(content);
+        AtomosDiscoveryCache cache1 = new AtomosDiscoveryCache(runtime, root.toFile());
+        put(cache1, manifest);
+        cache1.save();
+
+        AtomosDiscoveryCache cache2 = new AtomosDiscoveryCache(runtime, root.toFile());
+        DiscoveredContent cached = cache2.get(KEY, manifest);
+        assertNotNull(cached, "No cached content.");
+        assertEquals(ContentKind.DIRECTORY, cached.getKind(), "Wrong kind.");
+        assertEquals("test.bundle", cached.getSymbolicName(), "Wrong name.");
+        assertEquals("test.location", cached.getLocation(), "Wrong location.");
+    }
+
+    @Test
+    void testNoRoot(@TempDir Path content) throws IOException
+    {
+        File manifest = createManifest(content);
+        AtomosDiscoveryCache cache = new AtomosDiscoveryCache(runtime, null);
+        put(cache, manifest);
+        cache.save();
+        assertFalse(new File(AtomosDiscoveryCache.ATOMOS_DISCOVERY_CACHE).exists(),
+            "Cache saved to the working directory.");
+    }
+
+    @Test
+    void testConfiguredStorage(@TempDir Path root, @TempDir Path content)
+        throws IOException
+    {
+        // the storage of the framework configuration is used before the framework exists
+        File manifest = createManifest(content);
+        AtomosRuntimeBase configured = (AtomosRuntimeBase) AtomosRuntime.newAtomosRuntime(
+            Collections.singletonMap(Constants.FRAMEWORK_STORAGE, root.toString()));
+        put(configured.getDiscoveryCache(), manifest);
+        configured.getDiscoveryCache().save();
+        assertTrue(new File(root.toFile(), AtomosDiscoveryCache.ATOMOS_DISCOVERY_CACHE)
+            .isFile(), "Cache not saved to the storage.");
+    }
+
+    @Test
+    void testFrameworkFactoryChanged(@TempDir Path root, @TempDir Path content)
+        throws IOException
+    {
+        File manifest = createManifest(content);
+        AtomosDiscoveryCache cache1 = new AtomosDiscoveryCache(runtime, root.toFile());
+        put(cache1, manifest);
+        cache1.save();
+
+        // a framework factory service changes the location of the directory
+        Path factory = manifest.toPath().resolveSibling(
+            "services/org.osgi.framework.launch.FrameworkFactory");
+        Files.createDirectories(factory.getParent());
+        Files.write(factory, "test.FrameworkFactory\n".getBytes());
+
+        AtomosDiscoveryCache cache2 = new AtomosDiscoveryCache(runtime, root.toFile());
+        assertNull(cache2.get(KEY, manifest), "Cached content used.");
+    }
+
+    @Test
+    void testDamaged(@TempDir Path root, @TempDir Path content) throws IOException
+    {
+        File manifest = createManifest(content);
+        // the version followed by an entry count far larger than the file
+        Files.write(root.resolve(AtomosDiscoveryCache.ATOMOS_DISCOVERY_CACHE),
+            new byte[] { 0, 0, 0, 2, 0x7f, -1, -1, -1 });
+        AtomosDiscoveryCache cache1 = new AtomosDiscoveryCache(runtime, root.toFile());
+        assertNull(cache1.get(KEY, manifest), "Unexpected cached content.");
+
+        put(cache1, manifest);
+        cache1.save();
+        Path tmp = root.resolve(AtomosDiscoveryCache.ATOMOS_DISCOVERY_CACHE + ".tmp");
+        assertFalse(Files.exists(tmp), "Temporary file left.");
+        AtomosDiscoveryCache cache2 = new AtomosDiscoveryCache(runtime, root.toFile());
+        assertNotNull(cache2.get(KEY, manifest), "No cached content.");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.apache.felix.atomos.runtime.AtomosRuntime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AtomosJournalTest
+{
+    private static final String CONNECT_LOCATION = "test.java.base";
+
+    private AtomosRuntimeBase newRuntime(File root)
+    {
+        AtomosRuntimeBase runtime = (AtomosRuntimeBase) AtomosRuntime.newAtomosRuntime();
+        runtime.initialize(root, Map.of());
+        return runtime;
+    }
+
+    private AtomosContent getJavaBase(AtomosRuntime runtime)
+    {
+        return runtime.getBootLayer().findAtomosContent("java.base").get();
+    }
+
+    @Test
+    void testStoreWrittenOnInitialize(@TempDir Path storage)
+    {
+        newRuntime(storage.toFile());
+        assertTrue(Files.isRegularFile(storage.resolve("atomosStore.data")),
+            "No store written.");
+        assertTrue(Files.isRegularFile(storage.resolve(AtomosJournal.ATOMOS_JOURNAL)),
+            "No journal.");
+    }
+
+    @Test
+    void testReplayPartialRecord(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntimeBase runtime1 = newRuntime(storage.toFile());
+        getJavaBase(runtime1).connect(CONNECT_LOCATION);
+
+        // the start of a record that was never completed
+        Path journal = storage.resolve(AtomosJournal.ATOMOS_JOURNAL);
+        Files.write(journal, new byte[] { 0, 0, 0, 100, 1, 2, 3 },
+            StandardOpenOption.APPEND);
+
+        AtomosRuntimeBase runtime2 = newRuntime(storage.toFile());
+        assertEquals(CONNECT_LOCATION, getJavaBase(runtime2).getConnectLocation(),
+            "Journal record not replayed.");
+        assertEquals(4, Files.size(journal), "Journal not reset after replay.");
+
+        // the replayed state is in the store so the next start does not need the journal
+        Files.delete(journal);
+        AtomosRuntimeBase runtime3 = newRuntime(storage.toFile());
+        assertEquals(CONNECT_LOCATION, getJavaBase(runtime3).getConnectLocation(),
+            "Replayed state not stored.");
+    }
+
+    @Test
+    void testCompact(@TempDir Path storage) throws IOException, InterruptedException
+    {
+        AtomosRuntimeBase runtime1 = newRuntime(storage.toFile());
+        AtomosContent javaBase = getJavaBase(runtime1);
+        for (int i = 0; i < 600; i++)
+        {
+            javaBase.connect(CONNECT_LOCATION);
+            javaBase.disconnect();
+        }
+        javaBase.connect(CONNECT_LOCATION + ".last");
+        assertEquals(CONNECT_LOCATION + ".last", javaBase.getConnectLocation());
+
+        // compaction happens in the background once enough records are appended
+        Path journal = storage.resolve(AtomosJournal.ATOMOS_JOURNAL);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Files.size(journal) > 1024 * 10 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.size(journal) <= 1024 * 10,
+            "Journal not compacted: " + Files.size(journal));
+
+        AtomosRuntimeBase runtime2 = newRuntime(storage.toFile());
+        assertEquals(CONNECT_LOCATION + ".last", getJavaBase(runtime2).getConnectLocation(),
+            "Last connect lost by compaction.");
+    }
+
+    @Test
+    void testCloseWaitsForCompaction(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntimeBase runtime = (AtomosRuntimeBase) AtomosRuntime.newAtomosRuntime();
+        AtomosJournal journal = new AtomosJournal(runtime, new AtomosStorage(runtime),
+            storage.toFile());
+        for (int i = 0; i < 1024; i++)
+        {
+            journal.disconnect("test.location");
+        }
+        journal.close();
+        assertTrue(journal.compactor.isTerminated(), "Compaction still running.");
+        assertFalse(Files.exists(storage.resolve(AtomosJournal.ATOMOS_JOURNAL + ".tmp")),
+            "Temporary journal left.");
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase;
+import org.apache.felix.atomos.impl.runtime.base.AtomosRuntimeBase.AtomosLayerBase.AtomosContentBase;
+import org.apache.felix.atomos.impl.runtime.modules.AtomosRuntimeModules;
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.apache.felix.atomos.runtime.AtomosLayer;
+import org.apache.felix.atomos.runtime.AtomosRuntime.LoaderType;
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.BundleException;
+
+public class AtomosRuntimeBaseTest
+{
+    private final AtomosRuntimeBase runtime = new AtomosRuntimeModules();
+
+    private AtomosContentBase getContent(String name)
+    {
+        return (AtomosContentBase) runtime.getBootLayer().findAtomosContent(name).get();
+    }
+
+    @Test
+    void testConnectLookups()
+    {
+        AtomosContentBase base = getContent("java.base");
+        assertSame(base, runtime.getByAtomosLocation(base.getAtomosLocation()),
+            "Wrong content for the Atomos location.");
+        assertNull(runtime.getByConnectLocation("test.base", false), "Unexpected content.");
+
+        base.connect("test.base");
+        assertEquals("test.base", base.getConnectLocation(), "Wrong connect location.");
+        assertSame(base, runtime.getByConnectLocation("test.base", false),
+            "Wrong content for the connect location.");
+        assertEquals("test.base", runtime.getByAtomosKey(base.getKey()),
+            "Wrong connect location for the key.");
+
+        base.disconnect();
+        assertNull(base.getConnectLocation(), "Unexpected connect location.");
+        assertNull(runtime.getByConnectLocation("test.base", false), "Unexpected content.");
+        assertNull(runtime.getByAtomosKey(base.getKey()), "Unexpected connect location.");
+    }
+
+    @Test
+    void testConnectUsedLocation()
+    {
+        AtomosContentBase base = getContent("java.base");
+        AtomosContentBase logging = getContent("java.logging");
+        base.connect("test.location");
+        try
+        {
+            assertThrows(IllegalStateException.class,
+                () -> logging.connect("test.location"), "Connected a used location.");
+            // a failed connect leaves the indexes unchanged
+            assertNull(logging.getConnectLocation(), "Unexpected connect location.");
+            assertNull(runtime.getByAtomosKey(logging.getKey()),
+                "Unexpected connect location.");
+            assertSame(base, runtime.getByConnectLocation("test.location", false),
+                "Wrong content for the connect location.");
+        }
+        finally
+        {
+            base.disconnect();
+        }
+    }
+
+    @Test
+    void testClassConnectLocation()
+    {
+        AtomosContentBase base = getContent("java.base");
+        assertNull(runtime.getConnectLocation(String.class), "Unexpected location.");
+
+        // the cached key of a class follows the connect location of its content
+        base.connect("test.base1");
+        assertEquals("test.base1", runtime.getConnectLocation(String.class),
+            "Wrong location.");
+        base.disconnect();
+        assertNull(runtime.getConnectLocation(String.class), "Unexpected location.");
+        base.connect("test.base2");
+        try
+        {
+            assertEquals("test.base2", runtime.getConnectLocation(String.class),
+                "Wrong location.");
+            runtime.invalidateAtomosKeys();
+            assertEquals("test.base2", runtime.getConnectLocation(String.class),
+                "Wrong location after invalidation.");
+        }
+        finally
+        {
+            base.disconnect();
+        }
+    }
+
+    @Test
+    void testNullLookups()
+    {
+        assertNull(runtime.getByConnectLocation(null, true), "Unexpected content.");
+        assertNull(runtime.getByAtomosLocation(null), "Unexpected content.");
+        assertNull(runtime.getByAtomosKey(null), "Unexpected connect location.");
+        assertNull(runtime.getConnectedContent(null), "Unexpected content.");
+    }
+
+    private AtomosLayerBase addEmptyLayer(AtomosRuntimeBase classPath, AtomosLayer parent,
+        String name)
+    {
+        AtomosLayerBase layer = classPath.new AtomosLayerBase(
+            Collections.singletonList(parent), classPath.nextLayerId.getAndIncrement(),
+            name, LoaderType.SINGLE)
+        {
+            @Override
+            public Set<AtomosContent> getAtomosContents()
+            {
+                return Collections.emptySet();
+            }
+
+            @Override
+            protected void findBootLayerAtomosContents(Set<AtomosContentBase> result)
+            {
+                // no contents
+            }
+        };
+        classPath.addAtomosLayer(layer);
+        return layer;
+    }
+
+    @Test
+    void testLayerHierarchy() throws BundleException
+    {
+        AtomosRuntimeBase classPath = new AtomosRuntimeClassPath();
+        AtomosLayer boot = classPath.getBootLayer();
+        AtomosLayerBase child = addEmptyLayer(classPath, boot, "child");
+        AtomosLayerBase grandchild = addEmptyLayer(classPath, child, "grandchild");
+        AtomosLayerBase sibling = addEmptyLayer(classPath, boot, "sibling");
+
+        assertTrue(classPath.isInLayerHierarchy(grandchild, boot),
+            "Boot not an ancestor.");
+        assertTrue(classPath.isInLayerHierarchy(grandchild, child),
+            "Parent not an ancestor.");
+        assertTrue(classPath.isInLayerHierarchy(child, child),
+            "Layer not in its hierarchy.");
+        assertFalse(classPath.isInLayerHierarchy(boot, child), "Child is an ancestor.");
+        assertFalse(classPath.isInLayerHierarchy(grandchild, sibling),
+            "Sibling is an ancestor.");
+
+        child.uninstall();
+        assertEquals(List.of(sibling), List.copyOf(boot.getChildren()),
+            "Wrong children after removal.");
+        assertFalse(classPath.isInLayerHierarchy(grandchild, child),
+            "Removed layer still an ancestor.");
+        assertFalse(classPath.isInLayerHierarchy(grandchild, boot),
+            "Removed layer still in the hierarchy.");
+        assertTrue(classPath.isInLayerHierarchy(sibling, boot), "Boot not an ancestor.");
+    }
+
+    private String captureDebug(boolean enabled)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(bytes, true));
+        try
+        {
+            runtime.setDebug(enabled);
+            assertEquals(enabled, runtime.isDebug(), "Wrong debug state.");
+            runtime.debug("message %s", "one");
+            runtime.debug("message %s %s %s %s", "one", "two", "three", "four");
+        }
+        finally
+        {
+            runtime.setDebug(false);
+            System.setOut(out);
+        }
+        return bytes.toString();
+    }
+
+    @Test
+    void testDebug()
+    {
+        assertEquals("", captureDebug(false), "Debug printed when disabled.");
+        String lineSeparator = System.lineSeparator();
+        assertEquals("ATOMOS DEBUG: message one" + lineSeparator
+            + "ATOMOS DEBUG: message one two three four" + lineSeparator,
+            captureDebug(true), "Wrong debug output.");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.apache.felix.atomos.runtime.AtomosLayer;
+import org.apache.felix.atomos.runtime.AtomosRuntime;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AtomosStorageTest
+{
+    private static final String ATOMOS_STORE = "atomosStore.data";
+    private static final String CONNECT_LOCATION = "test.java.base";
+
+    private AtomosRuntimeBase newRuntime(File root)
+    {
+        AtomosRuntimeBase runtime = (AtomosRuntimeBase) AtomosRuntime.newAtomosRuntime();
+        runtime.initialize(root, Map.of());
+        return runtime;
+    }
+
+    private AtomosContent getJavaBase(AtomosRuntime runtime)
+    {
+        return runtime.getBootLayer().findAtomosContent("java.base").get();
+    }
+
+    private int getVersion(Path store) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(store)))
+        {
+            return in.readInt();
+        }
+    }
+
+    private void assertDamaged(Path storage)
+    {
+        // the store is loaded before the journal is replayed
+        UncheckedIOException e = assertThrows(UncheckedIOException.class,
+            () -> newRuntime(storage.toFile()), "Damaged store loaded.");
+        assertTrue(e.getCause().getMessage().contains("damaged")
+            || e.getCause().getMessage().contains("truncated"),
+            "Wrong error: " + e.getCause());
+    }
+
+    @Test
+    void testMigrateVersion1(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntime current = AtomosRuntime.newAtomosRuntime();
+        AtomosLayer boot = current.getBootLayer();
+        Path store = storage.resolve(ATOMOS_STORE);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(store)))
+        {
+            out.writeInt(1);
+            out.writeLong(boot.getId() + 1);
+            out.writeInt(1);
+            out.writeUTF(boot.getName());
+            out.writeLong(boot.getId());
+            out.writeUTF(boot.getLoaderType().toString());
+            // no paths and no parents
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeUTF(getJavaBase(current).getAtomosLocation());
+            out.writeBoolean(true);
+            out.writeUTF(CONNECT_LOCATION);
+        }
+
+        AtomosRuntimeBase runtime = newRuntime(storage.toFile());
+        assertEquals(CONNECT_LOCATION, getJavaBase(runtime).getConnectLocation(),
+            "Version 1 store not loaded.");
+        assertEquals(2, getVersion(store), "Store not migrated.");
+    }
+
+    @Test
+    void testCurrentVersion(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntimeBase runtime1 = newRuntime(storage.toFile());
+        getJavaBase(runtime1).connect(CONNECT_LOCATION);
+        new AtomosStorage(runtime1).saveLayers(storage.toFile(), null);
+
+        Files.delete(storage.resolve(AtomosJournal.ATOMOS_JOURNAL));
+        AtomosRuntimeBase runtime2 = newRuntime(storage.toFile());
+        assertEquals(CONNECT_LOCATION, getJavaBase(runtime2).getConnectLocation(),
+            "Store not loaded.");
+    }
+
+    @Test
+    void testTruncated(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntimeBase runtime = newRuntime(storage.toFile());
+        getJavaBase(runtime).connect(CONNECT_LOCATION);
+        new AtomosStorage(runtime).saveLayers(storage.toFile(), null);
+
+        Path store = storage.resolve(ATOMOS_STORE);
+        byte[] bytes = Files.readAllBytes(store);
+        for (int length : new int[] { 2, 20, bytes.length - 4 })
+        {
+            Files.write(store, Arrays.copyOf(bytes, length));
+            assertDamaged(storage);
+        }
+    }
+
+    @Test
+    void testDamaged(@TempDir Path storage) throws IOException
+    {
+        AtomosRuntimeBase runtime = newRuntime(storage.toFile());
+        getJavaBase(runtime).connect(CONNECT_LOCATION);
+        new AtomosStorage(runtime).saveLayers(storage.toFile(), null);
+
+        Path store = storage.resolve(ATOMOS_STORE);
+        byte[] bytes = Files.readAllBytes(store);
+        // a huge number of layers
+        byte[] damaged = bytes.clone();
+        ByteBuffer.wrap(damaged).putInt(16, Integer.MAX_VALUE);
+        Files.write(store, damaged);
+        assertDamaged(storage);
+
+        // a string offset past the string data
+        damaged = bytes.clone();
+        ByteBuffer.wrap(damaged).putInt(28, Integer.MAX_VALUE);
+        Files.write(store, damaged);
+        assertDamaged(storage);
+    }
+}
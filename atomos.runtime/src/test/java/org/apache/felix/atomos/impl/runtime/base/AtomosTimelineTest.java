@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import jdk.jfr.Recording;
+
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Event;
+import org.apache.felix.atomos.impl.runtime.base.AtomosTimeline.Span;
+import org.junit.jupiter.api.Test;
+
+public class AtomosTimelineTest
+{
+    @Test
+    void testDetail()
+    {
+        AtomosTimeline timeline = new AtomosTimeline();
+        try (Span span = timeline.begin("test", "phase"))
+        {
+            span.setDetail("3 items");
+        }
+        timeline.begin("test", "other").close();
+        List<Event> events = timeline.getEvents();
+        assertEquals(2, events.size(), "Wrong number of events.");
+        assertEquals("phase: 3 items", events.get(0).getName(), "Wrong name.");
+        assertEquals("other", events.get(1).getName(), "Wrong name.");
+    }
+
+    @Test
+    void testClassPathDiscovery()
+    {
+        AtomosRuntimeBase runtime = new AtomosRuntimeClassPath();
+        runtime.getBootLayer();
+        assertTrue(runtime.getTimeline().getEvents().stream().anyMatch(
+            (e) -> "discovery".equals(e.getCategory())
+                && e.getName().contains(" manifests using ")),
+            "No discovery event.");
+    }
+
+    @Test
+    void testJfrEventOnlyWhenRecording()
+    {
+        assertNull(AtomosTimelineEvent.begin("test", "phase"),
+            "Event allocated without a recording.");
+        try (Recording recording = new Recording())
+        {
+            recording.enable(AtomosTimelineEvent.class);
+            recording.start();
+            Object event = AtomosTimelineEvent.begin("test", "phase");
+            assertNotNull(event, "No event while recording.");
+            AtomosTimelineEvent.commit(event);
+        }
+        assertNull(AtomosTimelineEvent.begin("test", "phase"),
+            "Event allocated after the recording closed.");
+    }
+}
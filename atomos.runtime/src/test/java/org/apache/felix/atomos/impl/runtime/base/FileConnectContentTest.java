@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.connect.ConnectContent.ConnectEntry;
+
+public class FileConnectContentTest
+{
+    private void write(Path root, String name, String content) throws IOException
+    {
+        Path file = root.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes());
+    }
+
+    private List<String> getEntries(FileConnectContent content) throws IOException
+    {
+        List<String> result = new ArrayList<>();
+        content.getEntries().forEach(result::add);
+        return result;
+    }
+
+    private boolean createLink(Path link, Path target)
+    {
+        try
+        {
+            Files.createSymbolicLink(link, target);
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            // links are not supported on this system
+            return false;
+        }
+    }
+
+    @Test
+    void testEntries(@TempDir Path root) throws IOException
+    {
+        write(root, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+        write(root, "a/b/C.class", "class");
+        FileConnectContent content = new FileConnectContent(root.toFile());
+
+        List<String> entries = getEntries(content);
+        assertTrue(entries.contains("META-INF/"), "Missing directory: " + entries);
+        assertTrue(entries.contains("META-INF/MANIFEST.MF"), "Missing file: " + entries);
+        assertTrue(entries.contains("a/b/"), "Missing directory: " + entries);
+        assertTrue(entries.contains("a/b/C.class"), "Missing file: " + entries);
+
+        ConnectEntry entry = content.getEntry("a/b/C.class").get();
+        assertEquals("a/b/C.class", entry.getName(), "Wrong name.");
+        assertEquals(5, entry.getContentLength(), "Wrong length.");
+        try (InputStream in = entry.getInputStream())
+        {
+            assertEquals("class", new String(in.readAllBytes()), "Wrong content.");
+        }
+        assertEquals("a/b/", content.getEntry("a/b").get().getName(),
+            "Wrong directory name.");
+        assertEquals("a/b/C.class", content.getEntry("/a/b/C.class").get().getName(),
+            "Wrong name with leading slash.");
+        assertFalse(content.getEntry("a/b/D.class").isPresent(), "Unexpected entry.");
+    }
+
+    @Test
+    void testNewEntryAfterClose(@TempDir Path root) throws IOException
+    {
+        write(root, "a/B.class", "class");
+        FileConnectContent content = new FileConnectContent(root.toFile());
+        assertTrue(content.getEntry("a/B.class").isPresent(), "Missing entry.");
+
+        content.close();
+        write(root, "a/C.class", "class");
+        assertTrue(content.getEntry("a/C.class").isPresent(), "Missing new entry.");
+    }
+
+    @Test
+    void testUnwatched(@TempDir Path root) throws IOException
+    {
+        write(root, "a/B.class", "class");
+        FileConnectContent content = new FileConnectContent(root.toFile(), false);
+        assertTrue(content.getEntry("a/B.class").isPresent(), "Missing entry.");
+        assertEquals("a/", content.getEntry("a").get().getName(),
+            "Wrong directory name.");
+
+        // without a watcher entries are looked up directly and never go stale
+        write(root, "a/C.class", "class");
+        assertTrue(content.getEntry("a/C.class").isPresent(), "Missing new entry.");
+        List<String> entries = getEntries(content);
+        assertTrue(entries.contains("a/C.class"), "Missing new file: " + entries);
+        write(root, "a/D.class", "class");
+        assertTrue(content.getEntry("a/D.class").isPresent(), "Missing new entry.");
+        assertFalse(content.getEntry("a/E.class").isPresent(), "Unexpected entry.");
+    }
+
+    @Test
+    void testUpperDirectory(@TempDir Path parent) throws IOException
+    {
+        Path root = parent.resolve("root");
+        write(root, "a/B.class", "class");
+        write(parent, "outside.txt", "outside");
+        FileConnectContent content = new FileConnectContent(root.toFile());
+
+        ConnectEntry entry = content.getEntry("a/../a/B.class").get();
+        assertEquals(5, entry.getContentLength(), "Wrong length.");
+        assertFalse(content.getEntry("../outside.txt").isPresent(),
+            "Entry outside the root.");
+        assertFalse(content.getEntry("a/../../outside.txt").isPresent(),
+            "Entry outside the root.");
+        assertFalse(content.getEntry("/../root/../outside.txt").isPresent(),
+            "Entry outside the root.");
+    }
+
+    @Test
+    void testLinkedDirectory(@TempDir Path root, @TempDir Path target) throws IOException
+    {
+        write(target, "b/C.class", "class");
+        if (!createLink(root.resolve("a"), target))
+        {
+            return;
+        }
+        // a link back to the root must not be followed forever
+        createLink(target.resolve("loop"), root);
+        FileConnectContent content = new FileConnectContent(root.toFile());
+
+        List<String> entries = getEntries(content);
+        assertTrue(entries.contains("a/"), "Missing linked directory: " + entries);
+        assertTrue(entries.contains("a/b/C.class"), "Missing linked file: " + entries);
+        assertTrue(content.getEntry("a/b/C.class").isPresent(), "Missing entry.");
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JarEntryIndexTest
+{
+    private static final byte[] STORED_CONTENT = "stored content".getBytes();
+    private static final byte[] DEFLATED_CONTENT = "deflated content deflated content"
+        .getBytes();
+
+    static void addEntry(ZipOutputStream out, String name, byte[] content, int method)
+        throws IOException
+    {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    /**
+     * A JAR without directory entries with a stored and a deflated entry.
+     */
+    static byte[] createJar() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes))
+        {
+            addEntry(out, "a/b/Stored.txt", STORED_CONTENT, ZipEntry.STORED);
+            addEntry(out, "a/Deflated.txt", DEFLATED_CONTENT, ZipEntry.DEFLATED);
+        }
+        return bytes.toByteArray();
+    }
+
+    static File createOuterJar(Path dir, int method) throws IOException
+    {
+        File outer = dir.resolve("outer.jar").toFile();
+        try (OutputStream file = Files.newOutputStream(outer.toPath());
+            ZipOutputStream out = new ZipOutputStream(file))
+        {
+            addEntry(out, "lib/inner.jar", createJar(), method);
+        }
+        return outer;
+    }
+
+    private byte[] read(JarEntryIndex index, String name) throws IOException
+    {
+        ZipEntry entry = index.getEntry(name);
+        assertNotNull(entry, "No entry: " + name);
+        try (InputStream in = index.getInputStream(entry))
+        {
+            return in.readAllBytes();
+        }
+    }
+
+    private void checkIndex(JarEntryIndex index) throws IOException
+    {
+        assertTrue(index.getNames().contains("a/"), "Missing directory.");
+        assertTrue(index.getNames().contains("a/b/"), "Missing directory.");
+        assertTrue(index.getEntry("a/b/").isDirectory(), "Not a directory.");
+        assertNull(index.getEntry("a/c/"), "Unexpected directory.");
+        assertEquals(0, read(index, "a/b/").length, "Directory has content.");
+        assertArrayEquals(STORED_CONTENT, read(index, "a/b/Stored.txt"),
+            "Wrong stored content.");
+        assertArrayEquals(DEFLATED_CONTENT, read(index, "a/Deflated.txt"),
+            "Wrong deflated content.");
+        assertEquals(DEFLATED_CONTENT.length, index.getEntry("a/Deflated.txt").getSize(),
+            "Wrong size.");
+    }
+
+    private void checkJar(Path dir, boolean map) throws IOException
+    {
+        Path jar = dir.resolve("test.jar");
+        Files.write(jar, createJar());
+        try (ZipFile zipFile = new ZipFile(jar.toFile()))
+        {
+            checkIndex(new JarEntryIndex(zipFile, map));
+        }
+    }
+
+    @Test
+    void testJar(@TempDir Path dir) throws IOException
+    {
+        checkJar(dir, false);
+    }
+
+    @Test
+    void testMappedJar(@TempDir Path dir) throws IOException
+    {
+        checkJar(dir, true);
+    }
+
+    @Test
+    void testMappedDamagedOffset(@TempDir Path dir) throws IOException
+    {
+        // the local header offset of the first entry points past the end of the JAR
+        byte[] bytes = createJar();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int cen = buffer.getInt(bytes.length - 22 + 16);
+        buffer.putInt(cen + 42, 0x7FFFFFF0);
+        Path jar = dir.resolve("damaged.jar");
+        Files.write(jar, bytes);
+        try (ZipFile zipFile = new ZipFile(jar.toFile()))
+        {
+            // the damaged JAR is read from the zip file instead
+            JarEntryIndex index = new JarEntryIndex(zipFile, true);
+            assertArrayEquals(DEFLATED_CONTENT, read(index, "a/Deflated.txt"),
+                "Wrong deflated content.");
+            assertThrows(IOException.class, () -> read(index, "a/b/Stored.txt"));
+        }
+    }
+
+    @Test
+    void testNestedStored(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, ZipEntry.STORED);
+        checkIndex(JarEntryIndex.nested(outer, "lib/inner.jar", false));
+        checkIndex(JarEntryIndex.nested(outer, "lib/inner.jar", true));
+    }
+
+    @Test
+    void testNestedStoredClosed(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, ZipEntry.STORED);
+        JarEntryIndex index = JarEntryIndex.nested(outer, "lib/inner.jar", false);
+        checkIndex(index);
+        // the outer JAR is opened again after the nested index is closed
+        index.close();
+        checkIndex(index);
+        index.close();
+    }
+
+    @Test
+    void testNestedTwice(@TempDir Path dir) throws IOException
+    {
+        // a stored JAR nested in a stored nested JAR is also read in place
+        ByteArrayOutputStream middle = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(middle))
+        {
+            addEntry(out, "lib/inner.jar", createJar(), ZipEntry.STORED);
+        }
+        File outer = dir.resolve("outer.jar").toFile();
+        try (OutputStream file = Files.newOutputStream(outer.toPath());
+            ZipOutputStream out = new ZipOutputStream(file))
+        {
+            addEntry(out, "lib/middle.jar", middle.toByteArray(), ZipEntry.STORED);
+        }
+        for (boolean map : new boolean[] {false, true})
+        {
+            JarEntryIndex index = JarEntryIndex.nested(outer, "lib/middle.jar", map);
+            checkIndex(index.getNested("lib/inner.jar"));
+            index.close();
+        }
+    }
+
+    @Test
+    void testNestedDeflated(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, ZipEntry.DEFLATED);
+        checkIndex(JarEntryIndex.nested(outer, "lib/inner.jar", false));
+        checkIndex(JarEntryIndex.nested(outer, "lib/inner.jar", true));
+    }
+
+    @Test
+    void testNestedMissing(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, ZipEntry.STORED);
+        assertThrows(ZipException.class,
+            () -> JarEntryIndex.nested(outer, "lib/missing.jar", false));
+        assertThrows(ZipException.class,
+            () -> JarEntryIndex.nested(outer, "lib/missing.jar", true));
+    }
+
+    @Test
+    void testNestedCorrupt(@TempDir Path dir) throws IOException
+    {
+        // a central directory offset past the end of the nested JAR
+        byte[] inner = createJar();
+        int eocd = inner.length - 22;
+        inner[eocd + 16] = (byte) 0xF0;
+        inner[eocd + 17] = (byte) 0xFF;
+        inner[eocd + 18] = (byte) 0xFF;
+        inner[eocd + 19] = (byte) 0x7F;
+        File outer = dir.resolve("outer.jar").toFile();
+        try (OutputStream file = Files.newOutputStream(outer.toPath());
+            ZipOutputStream out = new ZipOutputStream(file))
+        {
+            addEntry(out, "lib/inner.jar", inner, ZipEntry.STORED);
+        }
+        assertThrows(ZipException.class,
+            () -> JarEntryIndex.nested(outer, "lib/inner.jar", false));
+        assertThrows(ZipException.class,
+            () -> JarEntryIndex.nested(outer, "lib/inner.jar", true));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class NestedJarConnectContentTest
+{
+    private File createOuterJar(Path dir, String... names) throws IOException
+    {
+        File outer = dir.resolve("outer.jar").toFile();
+        try (OutputStream file = Files.newOutputStream(outer.toPath());
+            ZipOutputStream out = new ZipOutputStream(file))
+        {
+            for (String name : names)
+            {
+                JarEntryIndexTest.addEntry(out, name, JarEntryIndexTest.createJar(),
+                    ZipEntry.STORED);
+            }
+        }
+        return outer;
+    }
+
+    private URL getManifest(File outer, String encodedName) throws IOException
+    {
+        return new URL("jar:" + outer.toURI() + "!/" + encodedName
+            + "!/META-INF/MANIFEST.MF");
+    }
+
+    private void close(Map<File, JarEntryIndex> outers) throws IOException
+    {
+        for (JarEntryIndex outer : outers.values())
+        {
+            outer.close();
+        }
+    }
+
+    @Test
+    void testSharedOuter(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, "lib/a.jar", "lib/b.jar");
+        Map<File, JarEntryIndex> outers = new HashMap<>();
+        NestedJarConnectContent a = NestedJarConnectContent.fromManifest(
+            getManifest(outer, "lib/a.jar"), outers);
+        assertNotNull(a, "No nested content.");
+        JarEntryIndex outerIndex = outers.get(outer);
+        assertNotNull(outerIndex, "Outer JAR not indexed.");
+        NestedJarConnectContent b = NestedJarConnectContent.fromManifest(
+            getManifest(outer, "lib/b.jar"), outers);
+        assertNotNull(b, "No nested content.");
+        assertSame(outerIndex, outers.get(outer), "Outer JAR indexed again.");
+
+        // the nested content is still readable when the outer JAR is closed
+        close(outers);
+        try (InputStream in = b.getEntry("a/b/Stored.txt").get().getInputStream())
+        {
+            assertEquals("stored content", new String(in.readAllBytes()),
+                "Wrong content.");
+        }
+    }
+
+    @Test
+    void testEncodedName(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, "lib/my inner+1.jar");
+        Map<File, JarEntryIndex> outers = new HashMap<>();
+        try
+        {
+            NestedJarConnectContent content = NestedJarConnectContent.fromManifest(
+                getManifest(outer, "lib/my%20inner+1.jar"), outers);
+            assertNotNull(content, "No nested content.");
+            assertEquals(outer.getPath() + "!/lib/my inner+1.jar", content.getName(),
+                "Wrong name.");
+            assertEquals("jar:" + outer.toURI() + "!/lib/my%20inner+1.jar!/",
+                content.getURL().toString(), "Wrong URL.");
+            assertTrue(content.getEntry("a/Deflated.txt").isPresent(), "Missing entry.");
+        }
+        finally
+        {
+            close(outers);
+        }
+    }
+
+    @Test
+    void testNotNested(@TempDir Path dir) throws IOException
+    {
+        File outer = createOuterJar(dir, "lib/a.jar");
+        Map<File, JarEntryIndex> outers = new HashMap<>();
+        assertNull(NestedJarConnectContent.fromManifest(
+            new URL("jar:" + outer.toURI() + "!/META-INF/MANIFEST.MF"), outers),
+            "Unexpected nested content.");
+        assertNull(NestedJarConnectContent.fromManifest(
+            getManifest(outer, "lib/missing.jar"), outers), "Unexpected nested content.");
+        close(outers);
+    }
+}
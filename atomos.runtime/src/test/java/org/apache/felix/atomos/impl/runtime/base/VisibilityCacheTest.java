@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.base;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.atomos.runtime.AtomosLayer;
+import org.junit.jupiter.api.Test;
+import org.osgi.framework.hooks.resolver.ResolverHook;
+
+public class VisibilityCacheTest
+{
+    private final AtomosRuntimeBase runtime = new AtomosRuntimeClassPath();
+
+    @Test
+    void testCachedCheck()
+    {
+        AtomosLayer layer = runtime.getBootLayer();
+        VisibilityCache cache = new VisibilityCache();
+        AtomicInteger checks = new AtomicInteger();
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(cache.isVisible(layer, "visible", (l, c) -> {
+                checks.incrementAndGet();
+                return true;
+            }), "Not visible.");
+            assertFalse(cache.isVisible(layer, "hidden", (l, c) -> {
+                checks.incrementAndGet();
+                return false;
+            }), "Visible.");
+        }
+        assertEquals(2, checks.get(), "Wrong number of checks.");
+        assertEquals(4, cache.getHits(), "Wrong hits.");
+        assertEquals(2, cache.getMisses(), "Wrong misses.");
+    }
+
+    @Test
+    void testResolverHookTimeline()
+    {
+        ResolverHook hook = new AtomosFrameworkHooks(runtime).begin(
+            Collections.emptyList());
+        hook.end();
+        assertTrue(runtime.getTimeline().getEvents().stream().anyMatch(
+            (e) -> "resolve".equals(e.getCategory())
+                && e.getName().endsWith(": visibility cache 0 hits 0 misses")),
+            "No visibility cache counts on the timeline.");
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.lang.module.Configuration;
+import java.lang.module.ResolvedModule;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ModuleConnectLoaderTest
+{
+    private final AtomosRuntimeModules runtime = new AtomosRuntimeModules();
+
+    private ModuleConnectLoader createLoader(String name) throws IOException
+    {
+        ModuleLayer boot = ModuleLayer.boot();
+        ResolvedModule resolved = boot.configuration().findModule(name).get();
+        ModuleConnectLoader loader = new ModuleConnectLoader(resolved, runtime);
+        // read edges outside the loader configuration go to the loaders of the boot layer
+        loader.initEdges(boot.findModule(name).get(), Configuration.empty(),
+            Collections.emptyMap());
+        return loader;
+    }
+
+    private List<URL> getResources(ModuleConnectLoader loader, String name)
+        throws IOException
+    {
+        return Collections.list(loader.getResources(name));
+    }
+
+    @Test
+    void testGetResourcesLocal() throws IOException
+    {
+        ModuleConnectLoader loader = createLoader("java.logging");
+        try
+        {
+            String name = "java/util/logging/Logger.class";
+            List<URL> resources = getResources(loader, name);
+            // the system loader finds the same resource; it is only returned once
+            assertEquals(1, resources.size(), "Wrong resources: " + resources);
+            assertEquals(loader.findResource(name), resources.get(0),
+                "Local resource not first.");
+        }
+        finally
+        {
+            loader.close();
+        }
+    }
+
+    @Test
+    void testGetResourcesReadEdge() throws IOException
+    {
+        ModuleConnectLoader loader = createLoader("java.logging");
+        try
+        {
+            String name = "java/lang/Object.class";
+            List<URL> resources = getResources(loader, name);
+            assertEquals(List.of(Object.class.getResource("Object.class")), resources,
+                "Wrong resources.");
+            assertEquals(resources.get(0), loader.getResource(name), "Wrong resource.");
+        }
+        finally
+        {
+            loader.close();
+        }
+    }
+
+    @Test
+    void testLoadClass() throws IOException, ClassNotFoundException
+    {
+        ModuleConnectLoader loader = createLoader("jdk.httpserver");
+        try
+        {
+            Class<?> local = loader.loadClass("com.sun.net.httpserver.HttpServer");
+            assertSame(loader, local.getClassLoader(), "Local class not defined.");
+            assertSame(local, loader.loadClass("com.sun.net.httpserver.HttpServer"),
+                "Local class defined twice.");
+            assertSame(String.class, loader.loadClass("java.lang.String"),
+                "Wrong class from the read edge.");
+            assertThrows(ClassNotFoundException.class,
+                () -> loader.loadClass("com.sun.net.httpserver.Missing"));
+            assertThrows(ClassNotFoundException.class,
+                () -> loader.loadClass("org.example.NotRead"));
+            assertThrows(ClassNotFoundException.class,
+                () -> loader.loadClass("NoPackage"));
+        }
+        finally
+        {
+            loader.close();
+        }
+    }
+
+    @Test
+    void testDefineFromReusedBuffer() throws IOException, ClassNotFoundException
+    {
+        ModuleConnectLoader loader1 = createLoader("jdk.httpserver");
+        ModuleConnectLoader loader2 = createLoader("jdk.httpserver");
+        try
+        {
+            // larger than the initial buffer so the buffer grows before it is reused
+            Class<?> large = loader1.loadClass("sun.net.httpserver.ServerImpl");
+            assertEquals("sun.net.httpserver.ServerImpl", large.getName(),
+                "Wrong class.");
+            Class<?> small1 = loader1.loadClass("com.sun.net.httpserver.HttpServer");
+            Class<?> small2 = loader2.loadClass("com.sun.net.httpserver.HttpServer");
+            assertNotSame(small1, small2, "Class not defined by each loader.");
+            assertEquals(small1.getDeclaredMethods().length,
+                small2.getDeclaredMethods().length, "Different class definitions.");
+            assertSame(loader1, loader1.loadClass(
+                "com.sun.net.httpserver.HttpHandler").getClassLoader(),
+                "Wrong loader.");
+        }
+        finally
+        {
+            loader1.close();
+            loader2.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ModuleHeaderCacheTest
+{
+    private final AtomosRuntimeModules runtime = new AtomosRuntimeModules();
+
+    private ModuleReference getJavaBase()
+    {
+        return ModuleFinder.ofSystem().find("java.base").get();
+    }
+
+    @Test
+    void testSaveAndLoad(@TempDir Path root)
+    {
+        String key = ModuleHeaderCache.getKey(getJavaBase(), false);
+        Map<String, String> headers = Map.of("Bundle-SymbolicName", "java.base");
+
+        ModuleHeaderCache cache1 = new ModuleHeaderCache(runtime);
+        cache1.load(root.toFile());
+        assertNull(cache1.get(key), "Unexpected headers.");
+        cache1.put(key, headers);
+        cache1.save();
+
+        ModuleHeaderCache cache2 = new ModuleHeaderCache(runtime);
+        cache2.load(root.toFile());
+        assertEquals(headers, cache2.get(key), "Wrong headers.");
+    }
+
+    @Test
+    void testLazyKey()
+    {
+        assertNotEquals(ModuleHeaderCache.getKey(getJavaBase(), false),
+            ModuleHeaderCache.getKey(getJavaBase(), true),
+            "Lazy headers use the same key.");
+    }
+
+    @Test
+    void testDamaged(@TempDir Path root) throws IOException
+    {
+        String key = ModuleHeaderCache.getKey(getJavaBase(), false);
+        // an entry count far larger than the file
+        writeCache(root, Integer.MAX_VALUE, 0);
+        ModuleHeaderCache cache1 = new ModuleHeaderCache(runtime);
+        cache1.load(root.toFile());
+        assertNull(cache1.get(key), "Unexpected headers.");
+
+        // a negative key length
+        writeCache(root, 1, -1);
+        ModuleHeaderCache cache2 = new ModuleHeaderCache(runtime);
+        cache2.load(root.toFile());
+        assertNull(cache2.get(key), "Unexpected headers.");
+
+        // a damaged cache is replaced on save
+        cache2.put(key, Map.of("Bundle-SymbolicName", "java.base"));
+        cache2.save();
+        assertFalse(Files.exists(
+            root.resolve(ModuleHeaderCache.ATOMOS_MODULE_HEADERS + ".tmp")),
+            "Temporary file left.");
+        ModuleHeaderCache cache3 = new ModuleHeaderCache(runtime);
+        cache3.load(root.toFile());
+        assertEquals("java.base", cache3.get(key).get("Bundle-SymbolicName"),
+            "Wrong headers.");
+    }
+
+    private static void writeCache(Path root, int numEntries, int keyLength)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeInt(1);
+            out.writeInt(numEntries);
+            out.writeInt(keyLength);
+            out.writeInt(0);
+        }
+        Files.write(root.resolve(ModuleHeaderCache.ATOMOS_MODULE_HEADERS),
+            bytes.toByteArray());
+    }
+}
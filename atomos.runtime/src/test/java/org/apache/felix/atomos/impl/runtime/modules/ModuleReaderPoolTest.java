@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.modules;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReader;
+import java.lang.module.ModuleReference;
+
+import org.junit.jupiter.api.Test;
+
+public class ModuleReaderPoolTest
+{
+    private static final String MODULE_INFO = "module-info.class";
+
+    private ModuleReference getJavaLogging()
+    {
+        return ModuleFinder.ofSystem().find("java.logging").get();
+    }
+
+    @Test
+    void testShared() throws IOException
+    {
+        ModuleReaderPool pool = new ModuleReaderPool();
+        ModuleReference reference = getJavaLogging();
+        ModuleReader reader1 = pool.acquire(reference);
+        ModuleReader reader2 = pool.acquire(reference);
+        assertSame(reader1, reader2, "Reader not shared.");
+
+        pool.release(reference);
+        assertTrue(reader1.find(MODULE_INFO).isPresent(),
+            "Reader closed while still acquired.");
+
+        pool.release(reference);
+        assertThrows(IOException.class, () -> reader1.find(MODULE_INFO));
+
+        // the next acquire opens a new reader
+        ModuleReader reader3 = pool.acquire(reference);
+        assertNotSame(reader1, reader3, "Closed reader reused.");
+        assertTrue(reader3.find(MODULE_INFO).isPresent(), "Reader not open.");
+        pool.release(reference);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.substrate;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.felix.atomos.runtime.AtomosContent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AtomosRuntimeSubstrateTest
+{
+    @Test
+    void testIndexPackages(@TempDir Path dir) throws IOException
+    {
+        Path index = SubstrateBundleIndexTest.writeIndex(dir, "1",
+            List.of(AtomosRuntimeSubstrateTest.class.getPackageName()),
+            List.of("META-INF/", "META-INF/MANIFEST.MF"));
+        AtomosRuntimeSubstrate runtime = new AtomosRuntimeSubstrate(null,
+            index.toUri().toURL(), null);
+        AtomosContent content = runtime.getBootLayer().findAtomosContent(
+            "test.bundle").get();
+
+        // the packages are known from the index before any bundle is installed
+        assertSame(content, runtime.getAtomosKey(AtomosRuntimeSubstrateTest.class),
+            "Wrong content for an indexed package.");
+        assertNull(runtime.getAtomosKey(String.class),
+            "Unexpected content for a package not in the index.");
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.substrate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SubstrateBundleIndexTest
+{
+    private static final List<String> PACKAGES = List.of("a.b", "a.c");
+    private static final List<String> ENTRIES = List.of("META-INF/",
+        "META-INF/MANIFEST.MF", "a/", "a/b/", "a/b/C.class", "a/c/", "a/c/D.class");
+
+    /**
+     * Writes an index of a single bundle in the format of the substrate config.
+     * Entry {@code i} has the size {@code i * 10} and was last modified at
+     * {@code i * 100}.
+     */
+    static Path writeIndex(Path dir, String bundleIndex, List<String> packages,
+        List<String> entries) throws IOException
+    {
+        List<String> bundle = List.of(bundleIndex, "test.bundle", "1.2.3");
+        TreeSet<String> names = new TreeSet<>(bundle);
+        names.addAll(packages);
+        names.addAll(entries);
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        for (String name : names)
+        {
+            ids.put(name, ids.size());
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        Path index = dir.resolve("bundles.index");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(index)))
+        {
+            out.writeInt(SubstrateBundleIndex.MAGIC);
+            out.writeInt(SubstrateBundleIndex.VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(1);
+            out.writeInt(packages.size() + entries.size());
+            int offset = 0;
+            for (byte[] string : strings)
+            {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : strings)
+            {
+                out.write(string);
+            }
+            for (String name : bundle)
+            {
+                out.writeInt(ids.get(name));
+            }
+            out.writeInt(0);
+            out.writeInt(packages.size());
+            out.writeInt(packages.size());
+            out.writeInt(entries.size());
+            out.writeInt(0);
+            for (String name : packages)
+            {
+                out.writeInt(ids.get(name));
+            }
+            for (String name : entries)
+            {
+                out.writeInt(ids.get(name));
+            }
+            for (int i = 0; i < entries.size(); i++)
+            {
+                out.writeLong(i * 10);
+                out.writeLong(i * 100);
+            }
+        }
+        return index;
+    }
+
+    @Test
+    void testRead(@TempDir Path dir) throws IOException
+    {
+        SubstrateBundleIndex index = SubstrateBundleIndex.read(
+            writeIndex(dir, "1", PACKAGES, ENTRIES).toUri().toURL());
+        assertEquals(1, index.getNumBundles(), "Wrong number of bundles.");
+        assertEquals("1", index.getIndex(0), "Wrong index.");
+        assertEquals("test.bundle", index.getSymbolicName(0), "Wrong name.");
+        assertEquals("1.2.3", index.getVersion(0).toString(), "Wrong version.");
+        assertEquals(PACKAGES, index.getPackages(0), "Wrong packages.");
+
+        SubstrateBundleIndex.Names entries = index.getEntries(0);
+        assertEquals(ENTRIES, entries, "Wrong entries.");
+        int d = entries.indexOf("a/c/D.class");
+        assertEquals(ENTRIES.indexOf("a/c/D.class"), d, "Wrong entry index.");
+        assertEquals(d * 10, entries.getSize(d), "Wrong size.");
+        assertEquals(d * 100, entries.getLastModified(d), "Wrong last modified.");
+        // a string of the index that is not an entry of the bundle
+        assertFalse(entries.contains("a.b"), "Unexpected entry.");
+        assertFalse(entries.contains("a/c/E.class"), "Unexpected entry.");
+        assertTrue(index.getPackages(0).contains("a.c"), "Missing package.");
+    }
+
+    @Test
+    void testNotAnIndex(@TempDir Path dir) throws IOException
+    {
+        Path index = dir.resolve("bundles.index");
+        Files.write(index, "1\ntest.bundle\n".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class,
+            () -> SubstrateBundleIndex.read(index.toUri().toURL()));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.atomos.impl.runtime.substrate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.osgi.framework.connect.ConnectContent.ConnectEntry;
+
+public class SubstrateIndexConnectContentTest
+{
+    // a/entry.txt is a test resource under /atomos/test/
+    private static final List<String> ENTRIES = List.of("a/", "a/entry.txt",
+        "a/missing.txt");
+
+    private SubstrateIndexConnectContent createContent(Path dir) throws IOException
+    {
+        SubstrateBundleIndex index = SubstrateBundleIndex.read(
+            SubstrateBundleIndexTest.writeIndex(dir, "test", List.of("a"),
+                ENTRIES).toUri().toURL());
+        return new SubstrateIndexConnectContent(index.getIndex(0),
+            index.getEntries(0));
+    }
+
+    private String read(ConnectEntry entry) throws IOException
+    {
+        try (InputStream in = entry.getInputStream())
+        {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void testEntries(@TempDir Path dir) throws IOException
+    {
+        SubstrateIndexConnectContent content = createContent(dir);
+        List<String> names = new ArrayList<>();
+        content.getEntries().forEach(names::add);
+        assertEquals(ENTRIES, names, "Wrong entries.");
+
+        // the size and last modified time come from the index
+        ConnectEntry entry = content.getEntry("a/entry.txt").get();
+        assertEquals("a/entry.txt", entry.getName(), "Wrong name.");
+        assertEquals(10, entry.getContentLength(), "Wrong size.");
+        assertEquals(100, entry.getLastModified(), "Wrong last modified.");
+        assertEquals("entry", read(entry), "Wrong content.");
+        // the second lookup uses the URL found by the first
+        assertEquals("entry", read(content.getEntry("a/entry.txt").get()),
+            "Wrong content.");
+
+        assertFalse(content.getEntry("a/missing.txt").isPresent(),
+            "Entry without a resource.");
+        assertFalse(content.getEntry("a/other.txt").isPresent(),
+            "Entry not in the index.");
+    }
+}
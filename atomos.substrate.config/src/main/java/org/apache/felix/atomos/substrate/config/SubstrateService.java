@@ -13,21 +13,27 @@
  */
 package org.apache.felix.atomos.substrate.config;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.UncheckedIOException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -44,7 +50,25 @@ public class SubstrateService
         "META-INF/maven/", "OSGI-OPT/");
     private static final String ATOMOS_BUNDLES = "/atomos/";
     private static final String ATOMOS_BUNDLES_INDEX = ATOMOS_BUNDLES + "bundles.index";
-    private static final String ATOMOS_BUNDLE = "ATOMOS_BUNDLE";
+    private static final int INDEX_MAGIC = 0x41544f4d;
+    private static final int INDEX_VERSION = 2;
+
+    private static class BundleIndex
+    {
+        final String index;
+        final String bsn;
+        final String version;
+        final Set<String> packages;
+        final Map<String, URL> entries = new TreeMap<>();
+
+        BundleIndex(String index, String bsn, String version, Set<String> packages)
+        {
+            this.index = index;
+            this.bsn = bsn;
+            this.version = version;
+            this.packages = packages;
+        }
+    }
     @Activate
     private BundleContext context;
 
@@ -56,14 +80,15 @@ public class SubstrateService
         }
         File atomosDir = new File(output, ATOMOS_BUNDLES);
         atomosDir.mkdir();
-        List<String> resources = new ArrayList<String>();
+        List<BundleIndex> bundleIndexes = new ArrayList<>();
         for (Bundle b : context.getBundles())
         {
             File bundleDir = new File(atomosDir, Long.toString(b.getBundleId()));
-            resources.add(ATOMOS_BUNDLE);
-            resources.add(Long.toString(b.getBundleId()));
-            resources.add(b.getSymbolicName());
-            resources.add(b.getVersion().toString());
+            BundleIndex bundleIndex = new BundleIndex(Long.toString(b.getBundleId()),
+                String.valueOf(b.getSymbolicName()), b.getVersion().toString(),
+                getPackages(b));
+            bundleIndexes.add(bundleIndex);
+            Map<String, URL> resources = bundleIndex.entries;
             Enumeration<URL> entries = b.findEntries("/", "*", false);
             while (entries.hasMoreElements())
             {
@@ -83,7 +108,7 @@ public class SubstrateService
                     // skip default package classes
                     if (!rootPath.endsWith(".class"))
                     {
-                        resources.add(rootPath);
+                        resources.put(rootPath, rootResource);
                         File resourceFile = new File(bundleDir, rootPath);
                         resourceFile.getParentFile().mkdirs();
                         try (InputStream in = rootResource.openStream())
@@ -107,7 +132,7 @@ public class SubstrateService
                         // make sure this is not from a fragment
                         if (resource.equals(b.getEntry(path)))
                         {
-                            resources.add(path);
+                            resources.put(path, resource);
                             if (!path.endsWith("/") && !isExcluded(path))
                             {
                                 File resourceFile = new File(bundleDir, path);
@@ -124,21 +149,122 @@ public class SubstrateService
                 }
             }
         }
-        File bundlesIndex = new File(output, ATOMOS_BUNDLES_INDEX);
-        try (BufferedWriter writer = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(bundlesIndex))))
+        writeIndex(new File(output, ATOMOS_BUNDLES_INDEX), bundleIndexes);
+    }
+
+    /**
+     * Writes the binary bundles index read by the Atomos substrate runtime.  All
+     * names are interned in one sorted string table and each bundle record refers
+     * to its sorted packages and entries through a table of string indexes.  The
+     * size and last modified time of each entry follow in the order of the entries.
+     */
+    private void writeIndex(File bundlesIndex, List<BundleIndex> bundleIndexes)
+        throws IOException
+    {
+        Set<String> names = new TreeSet<>();
+        int numRefs = 0;
+        for (BundleIndex bundleIndex : bundleIndexes)
+        {
+            names.add(bundleIndex.index);
+            names.add(bundleIndex.bsn);
+            names.add(bundleIndex.version);
+            names.addAll(bundleIndex.packages);
+            names.addAll(bundleIndex.entries.keySet());
+            numRefs += bundleIndex.packages.size() + bundleIndex.entries.size();
+        }
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>(names.size());
+        for (String name : names)
+        {
+            ids.put(name, ids.size());
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(bundlesIndex))))
         {
-            resources.forEach((l) -> {
-                try
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(bundleIndexes.size());
+            out.writeInt(numRefs);
+            int offset = 0;
+            for (byte[] string : strings)
+            {
+                out.writeInt(offset);
+                offset += string.length;
+            }
+            out.writeInt(offset);
+            for (byte[] string : strings)
+            {
+                out.write(string);
+            }
+            int ref = 0;
+            int entry = 0;
+            for (BundleIndex bundleIndex : bundleIndexes)
+            {
+                out.writeInt(ids.get(bundleIndex.index));
+                out.writeInt(ids.get(bundleIndex.bsn));
+                out.writeInt(ids.get(bundleIndex.version));
+                out.writeInt(ref);
+                out.writeInt(bundleIndex.packages.size());
+                ref += bundleIndex.packages.size();
+                out.writeInt(ref);
+                out.writeInt(bundleIndex.entries.size());
+                out.writeInt(entry);
+                ref += bundleIndex.entries.size();
+                entry += bundleIndex.entries.size();
+            }
+            for (BundleIndex bundleIndex : bundleIndexes)
+            {
+                // sorted names have sorted string indexes
+                for (String pkg : bundleIndex.packages)
                 {
-                    writer.append(l).append('\n');
+                    out.writeInt(ids.get(pkg));
                 }
-                catch (IOException e)
+                for (String name : bundleIndex.entries.keySet())
                 {
-                    throw new UncheckedIOException(e);
+                    out.writeInt(ids.get(name));
                 }
-            });
+            }
+            for (BundleIndex bundleIndex : bundleIndexes)
+            {
+                // record the metadata so the runtime does not open connections for it
+                for (URL resource : bundleIndex.entries.values())
+                {
+                    URLConnection connection = resource.openConnection();
+                    out.writeLong(connection.getContentLengthLong());
+                    out.writeLong(connection.getLastModified());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all the packages containing classes of the bundle, including
+     * private packages, so the runtime can map any class to its bundle.
+     */
+    private Set<String> getPackages(Bundle b)
+    {
+        Set<String> packages = new TreeSet<>();
+        Enumeration<URL> classes = b.findEntries("/", "*.class", true);
+        while (classes != null && classes.hasMoreElements())
+        {
+            URL classResource = classes.nextElement();
+            String path = classResource.getPath();
+            if (path.startsWith("/"))
+            {
+                path = path.substring(1);
+            }
+            int lastSlash = path.lastIndexOf('/');
+            // skip default package classes and classes from fragments
+            if (lastSlash > 0 && !path.startsWith("META-INF/")
+                && classResource.equals(b.getEntry(path)))
+            {
+                packages.add(path.substring(0, lastSlash).replace('/', '.'));
+            }
         }
+        return packages;
     }
 
     private boolean isExcluded(String path)
@@ -15,6 +15,7 @@ package org.apache.felix.atomos.tests.modulepath.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -25,6 +26,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -74,6 +76,7 @@ public class ModulepathLaunchTest
      */
     private static final String RESSOURCE_A_CLAZZ_NAME = TESTBUNDLES_RESOURCE_A + ".Clazz";
     private static final String ATOMOS_DEBUG_PROP = "atomos.enable.debug";
+    private static final String ATOMOS_CLASS_LIST_PROP = "atomos.class.list";
     private Framework testFramework;
 
     @AfterEach
@@ -607,6 +610,28 @@ public class ModulepathLaunchTest
         checkServices(bc, 4);
     }
 
+    @Test
+    void testModuleDirServicesParallel(@TempDir Path storage)
+        throws BundleException, InvalidSyntaxException, InterruptedException
+    {
+        ModulepathLaunch.main(new String[] {
+                Constants.FRAMEWORK_STORAGE + '=' + storage.toFile().getAbsolutePath(),
+                AtomosLauncher.ATOMOS_MODULES_DIR + "=target/modules",
+                AtomosRuntime.ATOMOS_CONTENT_PARALLEL + "=true" });
+        testFramework = ModulepathLaunch.getFramework();
+        final BundleContext bc = testFramework.getBundleContext();
+        assertNotNull(bc, "No context found.");
+        checkBundleStates(bc.getBundles());
+
+        // the same contents are installed as with the sequential installer
+        final AtomosRuntime atomosRuntime = bc.getService(
+            bc.getServiceReference(AtomosRuntime.class));
+        atomosRuntime.getBootLayer().getChildren().forEach(
+            (l) -> l.getAtomosContents().forEach((c) -> assertNotNull(c.getBundle(),
+                "No bundle for content: " + c.getSymbolicName())));
+        checkServices(bc, 4);
+    }
+
     @Test
     void testModulePathServices(@TempDir Path storage)
         throws BundleException, InvalidSyntaxException
@@ -711,6 +736,102 @@ public class ModulepathLaunchTest
         checkServices(bc, 7);
     }
 
+    @Test
+    void testPersistLayerAddedBeforeFramework(@TempDir Path storage)
+        throws BundleException, InvalidSyntaxException, InterruptedException
+    {
+        // the modules layer is added before the framework is created
+        ModulepathLaunch.main(new String[] {
+                Constants.FRAMEWORK_STORAGE + '=' + storage.toFile().getAbsolutePath(),
+                AtomosLauncher.ATOMOS_MODULES_DIR + "=target/modules" });
+        testFramework = ModulepathLaunch.getFramework();
+        BundleContext bc = testFramework.getBundleContext();
+        assertNotNull(bc, "No context found.");
+        checkServices(bc, 4);
+
+        testFramework.stop();
+        testFramework.waitForStop(10000);
+
+        // restart with a new runtime that does not add the modules layer
+        final AtomosRuntime atomosRuntime = AtomosRuntime.newAtomosRuntime();
+        testFramework = AtomosLauncher.newFramework(
+            Map.of(Constants.FRAMEWORK_STORAGE, storage.toFile().getAbsolutePath()),
+            atomosRuntime);
+        testFramework.start();
+        bc = testFramework.getBundleContext();
+        assertNotNull(bc, "No context found.");
+
+        final Set<AtomosLayer> children = atomosRuntime.getBootLayer().getChildren();
+        assertEquals(1, children.size(), "Wrong number of children.");
+        final AtomosLayer modules = children.iterator().next();
+        assertEquals("modules", modules.getName(), "Wrong name.");
+        assertFalse(modules.getAtomosContents().isEmpty(), "No modules contents.");
+        modules.getAtomosContents().forEach((c) -> assertNotNull(c.getBundle(),
+            "No bundle for content: " + c.getSymbolicName()));
+        checkServices(bc, 4);
+    }
+
+    @Test
+    void testLazyBootLayer(@TempDir Path storage)
+        throws BundleException, InvalidSyntaxException
+    {
+        ModulepathLaunch.main(new String[] {
+                Constants.FRAMEWORK_STORAGE + '=' + storage.toFile().getAbsolutePath(),
+                AtomosRuntime.ATOMOS_CONTENT_LAZY + "=true" });
+        testFramework = ModulepathLaunch.getFramework();
+        final BundleContext bc = testFramework.getBundleContext();
+        assertNotNull(bc, "No context found.");
+
+        // boot layer modules are defined by the JDK loaders and cannot be lazy
+        for (Bundle b : bc.getBundles())
+        {
+            assertNotEquals(Bundle.STARTING, b.getState(),
+                "Bundle left in lazy state: " + b.getSymbolicName());
+        }
+        checkServices(bc, 4);
+    }
+
+    @Test
+    void testPreloadLazy(@TempDir Path storage) throws BundleException, IOException,
+        InterruptedException
+    {
+        final String implA = "org.apache.felix.atomos.tests.testbundles.service.impl.a";
+        final String echoImpl = implA.replace('.', '/') + "/EchoImpl";
+        final String gone = implA.replace('.', '/') + "/Gone";
+        final Path classList = storage.resolve("classes.lst");
+        Files.write(classList, List.of(echoImpl, gone));
+        System.setProperty(ATOMOS_CLASS_LIST_PROP, classList.toString());
+        try
+        {
+            ModulepathLaunch.main(new String[] {
+                    Constants.FRAMEWORK_STORAGE + '='
+                        + storage.resolve("framework").toFile().getAbsolutePath(),
+                    AtomosLauncher.ATOMOS_MODULES_DIR + "=target/modules",
+                    AtomosRuntime.ATOMOS_CONTENT_LAZY + "=true" });
+            testFramework = ModulepathLaunch.getFramework();
+            final BundleContext bc = testFramework.getBundleContext();
+            assertNotNull(bc, "No context found.");
+
+            // preloading the class must not activate the lazy bundle
+            final Bundle b = Arrays.stream(bc.getBundles()).filter(
+                (each) -> implA.equals(each.getSymbolicName())).findFirst().orElse(null);
+            assertNotNull(b, "No bundle found: " + implA);
+            assertEquals(Bundle.STARTING, b.getState(), "Wrong state: " + implA);
+
+            testFramework.stop();
+            testFramework.waitForStop(10000);
+        }
+        finally
+        {
+            System.getProperties().remove(ATOMOS_CLASS_LIST_PROP);
+        }
+
+        // classes that no longer exist are dropped from the saved list
+        final List<String> saved = Files.readAllLines(classList);
+        assertTrue(saved.contains(echoImpl), "Missing class: " + echoImpl);
+        assertFalse(saved.contains(gone), "Unexpected class: " + gone);
+    }
+
     @Test
     void testReferenceUser(@TempDir Path storage)
         throws BundleException, InvalidSyntaxException